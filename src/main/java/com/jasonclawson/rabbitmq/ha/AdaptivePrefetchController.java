@@ -0,0 +1,226 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Tunes the prefetch count of a channel. It measures the rate at which the consumers of the 
+ * channel ack, the time from delivery to ack, and the network round trip time, and periodically 
+ * sets the prefetch to what is in flight during one round trip at the current ack rate 
+ * (the bandwidth-delay product), times a headroom factor, within the configured bounds.
+ * 
+ * The prefetch is set with {@link HaChannel#basicQos(int)}, which is replayed on reconnect, so 
+ * the tuned value survives recovery. basicQos is sent every period, also when the value did not 
+ * change, on purpose: its round trip is the probe the round trip time is measured with.
+ * 
+ * Consumers must be wrapped with {@link #wrap(HaConsumer)} so deliveries are seen. Use it on a 
+ * channel whose consumers share one workload, the prefetch applies to the whole channel. The 
+ * broker ignores the prefetch for autoAck consumers, do not use it for them.
+ */
+@Slf4j
+public class AdaptivePrefetchController implements HaAckListener, Runnable {
+	/**
+	 * weight of a new sample in the moving averages
+	 */
+	private static final double SMOOTHING = 0.3;
+	private static final double HEADROOM = 2.0;
+	
+	/**
+	 * changes smaller than this fraction of the current prefetch are not applied
+	 */
+	private static final double MIN_CHANGE = 0.1;
+	
+	private final HaChannel channel;
+	private final int minPrefetch;
+	private final int maxPrefetch;
+	
+	/**
+	 * delivery time, in nanos, of the deliveries not acked yet
+	 */
+	private final ConcurrentHashMap<DeliveryTag, Long> unacked = new ConcurrentHashMap<DeliveryTag, Long>();
+	
+	/**
+	 * Bound of unacked. The prefetch keeps it below maxPrefetch, but deliveries that are never 
+	 * acked, of an autoAck consumer for example, must not grow it forever.
+	 */
+	private final int maxTracked;
+	private final AtomicLong ackedInWindow = new AtomicLong();
+	private final AtomicLong processingNanosInWindow = new AtomicLong();
+	private long windowStart = System.nanoTime();
+	private ScheduledExecutorService scheduler;
+	
+	@Getter
+	private volatile int prefetch;
+	
+	/**
+	 * acks per second
+	 */
+	@Getter
+	private volatile double ackRate = 0;
+	
+	@Getter
+	private volatile double averageRoundTripMillis = 0;
+	
+	/**
+	 * time from delivery to ack
+	 */
+	@Getter
+	private volatile double averageProcessingMillis = 0;
+	
+	public AdaptivePrefetchController(HaChannel channel, int minPrefetch, int maxPrefetch) {
+		this.channel = channel;
+		this.minPrefetch = Math.max(1, minPrefetch);
+		this.maxPrefetch = Math.max(this.minPrefetch, maxPrefetch);
+		this.prefetch = this.minPrefetch;
+		//room for the deliveries of the previous channel after a reconnect
+		this.maxTracked = this.maxPrefetch * 2;
+		channel.addAckListener(this);
+	}
+	
+	/**
+	 * Applies the minimum prefetch and starts adjusting it every period
+	 * @param period milliseconds between adjustments
+	 */
+	public synchronized void start(long period) throws IOException {
+		if(scheduler != null) {
+			return;
+		}
+		applyPrefetch(prefetch);
+		scheduler = Executors.newSingleThreadScheduledExecutor(HaUtils.daemonThreadFactory("ha-prefetch-controller"));
+		scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stop() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		channel.removeAckListener(this);
+	}
+	
+	/**
+	 * @return a consumer that records deliveries for this controller and passes them on to delegate
+	 */
+	public HaConsumer wrap(HaConsumer delegate) {
+		return new ForwardingHaConsumer(delegate) {
+			@Override
+			public void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) throws IOException {
+				if(unacked.size() < maxTracked) {
+					unacked.put(envelope.getDeliveryTag(), System.nanoTime());
+				}
+				super.handleDelivery(consumerTag, envelope, properties, body);
+			}
+		};
+	}
+	
+	@Override
+	public void handleAck(DeliveryTag deliveryTag, boolean multiple) {
+		settle(deliveryTag, multiple);
+	}
+
+	@Override
+	public void handleNack(DeliveryTag deliveryTag, boolean multiple, boolean requeue) {
+		settle(deliveryTag, multiple);
+	}
+	
+	private void settle(DeliveryTag deliveryTag, boolean multiple) {
+		long now = System.nanoTime();
+		if(!multiple) {
+			settled(unacked.remove(deliveryTag), now);
+			return;
+		}
+		
+		Iterator<Entry<DeliveryTag, Long>> it = unacked.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry<DeliveryTag, Long> entry = it.next();
+			DeliveryTag tag = entry.getKey();
+			if(tag.getInternalChannelId() == deliveryTag.getInternalChannelId() && tag.getDeliveryTag() <= deliveryTag.getDeliveryTag()) {
+				it.remove();
+				settled(entry.getValue(), now);
+			}
+		}
+	}
+	
+	private void settled(Long deliveredAt, long now) {
+		if(deliveredAt != null) {
+			ackedInWindow.incrementAndGet();
+			processingNanosInWindow.addAndGet(now - deliveredAt);
+		}
+	}
+	
+	@Override
+	public void run() {
+		try {
+			adjust();
+		} catch (Exception e) {
+			//the channel is recovering, basicQos is replayed with the current value
+			log.debug("Unable to adjust prefetch {}", e.toString());
+		}
+	}
+	
+	private void adjust() throws IOException {
+		long now = System.nanoTime();
+		long acked = ackedInWindow.getAndSet(0);
+		long processingNanos = processingNanosInWindow.getAndSet(0);
+		double seconds = (now - windowStart) / 1e9;
+		windowStart = now;
+		
+		//deliveries from a channel that went away with the old connection are never acked
+		forgetOldChannels();
+		
+		if(acked == 0) {
+			//nothing to learn from an idle window, but keep probing the round trip time
+			applyPrefetch(prefetch);
+			return;
+		}
+		
+		ackRate = smooth(ackRate, acked / seconds);
+		averageProcessingMillis = smooth(averageProcessingMillis, processingNanos / 1e6 / acked);
+		
+		int target = (int) Math.ceil(ackRate * averageRoundTripMillis / 1000 * HEADROOM);
+		target = Math.max(minPrefetch, Math.min(maxPrefetch, target));
+		if(Math.abs(target - prefetch) >= Math.max(1, prefetch * MIN_CHANGE)) {
+			log.debug("Adjusting prefetch from {} to {}, ack rate {}/s, round trip {} ms", prefetch, target, ackRate, averageRoundTripMillis);
+			applyPrefetch(target);
+		} else {
+			//same value, sent as the round trip probe
+			applyPrefetch(prefetch);
+		}
+	}
+	
+	private void applyPrefetch(int value) throws IOException {
+		long start = System.nanoTime();
+		channel.basicQos(value);
+		double roundTrip = (System.nanoTime() - start) / 1e6;
+		averageRoundTripMillis = averageRoundTripMillis == 0 ? roundTrip : smooth(averageRoundTripMillis, roundTrip);
+		prefetch = value;
+	}
+	
+	private void forgetOldChannels() {
+		long newest = -1;
+		for(DeliveryTag tag : unacked.keySet()) {
+			newest = Math.max(newest, tag.getInternalChannelId());
+		}
+		Iterator<DeliveryTag> it = unacked.keySet().iterator();
+		while(it.hasNext()) {
+			if(it.next().getInternalChannelId() != newest) {
+				it.remove();
+			}
+		}
+	}
+	
+	private static double smooth(double average, double sample) {
+		return average + SMOOTHING * (sample - average);
+	}
+}
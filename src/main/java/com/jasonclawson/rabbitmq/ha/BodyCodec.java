@@ -0,0 +1,18 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+
+/**
+ * Encodes message bodies on publish and decodes them on delivery, identified by the 
+ * content-encoding property. Implementations must be thread safe.
+ */
+public interface BodyCodec {
+	/**
+	 * @return the content-encoding set on encoded messages
+	 */
+	String getContentEncoding();
+	
+	byte[] encode(byte[] body) throws IOException;
+	
+	byte[] decode(byte[] body) throws IOException;
+}
@@ -3,7 +3,10 @@ package com.jasonclawson.rabbitmq.ha;
 import java.io.IOException;
 import java.util.Map;
 
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.GetResponse;
 
 /**
  * Just a little helper to make Lombok not delegate these methods
@@ -17,4 +20,10 @@ public interface ChannelPruned {
     public void basicAck(long deliveryTag, boolean multiple) throws IOException;
     public void basicNack(long deliveryTag, boolean multiple, boolean requeue) throws IOException;
     public void basicReject(long deliveryTag, boolean requeue) throws IOException;
+    public void basicPublish(String exchange, String routingKey, BasicProperties props, byte[] body) throws IOException;
+    public void basicPublish(String exchange, String routingKey, boolean mandatory, BasicProperties props, byte[] body) throws IOException;
+    public void basicPublish(String exchange, String routingKey, boolean mandatory, boolean immediate, BasicProperties props, byte[] body) throws IOException;
+    public GetResponse basicGet(String queue, boolean autoAck) throws IOException;
+    public AMQP.Tx.SelectOk txSelect() throws IOException;
+    public AMQP.Confirm.SelectOk confirmSelect() throws IOException;
 }
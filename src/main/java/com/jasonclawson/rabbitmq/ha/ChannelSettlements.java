@@ -0,0 +1,156 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * The deliveries of one delegate channel that still have to be settled on the broker. Acks,
+ * nacks, rejects and abandons claim the tags they settle here first, so a delivery is settled
+ * on the broker once however many of them race for it, and later ones are dropped.
+ * 
+ * A multiple settlement covers the messages of the packs delivered up to its tag, and a 
+ * multiple settlement of a message unpacked from a pack covers the deliveries before the pack, 
+ * as the broker would if the messages had been delivered one by one.
+ *
+ * A multiple settlement holds the lock exclusively, so no single settlement of a tag it covers
+ * is still on its way to the broker when it is sent.
+ */
+@RequiredArgsConstructor
+class ChannelSettlements {
+	enum Outcome {
+		ACK("basicAck"), REQUEUE("basicNack"), REJECT("basicReject");
+		
+		/**
+		 * the channel operation that settles a delivery with this outcome
+		 */
+		@Getter(AccessLevel.PACKAGE)
+		private final String operation;
+		
+		private Outcome(String operation) {
+			this.operation = operation;
+		}
+		
+		static Outcome of(boolean ack, boolean requeue) {
+			return ack ? ACK : requeue ? REQUEUE : REJECT;
+		}
+	}
+	
+	@Getter(AccessLevel.PACKAGE)
+	private final long internalChannelId;
+	@Getter(AccessLevel.PACKAGE)
+	private final Channel channel;
+	
+	private final ConcurrentSkipListSet<Long> unsettled = new ConcurrentSkipListSet<Long>();
+	/**
+	 * delivered packs with unsettled messages, by broker delivery tag
+	 */
+	private final ConcurrentSkipListMap<Long, PackedCarrier> packs = new ConcurrentSkipListMap<Long, PackedCarrier>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Registers a delivery that has to be settled, before it is handed to the application
+	 */
+	void delivered(long deliveryTag) {
+		unsettled.add(deliveryTag);
+	}
+	
+	/**
+	 * Tracks the messages of a delivered pack
+	 */
+	PackedCarrier unpacked(DeliveryTag deliveryTag, int size) {
+		return new PackedCarrier(deliveryTag, size, packs);
+	}
+	
+	/**
+	 * Settles a delivery, or with multiple all unsettled deliveries up to and including it
+	 * @return false if there was nothing left to settle
+	 */
+	boolean settle(long deliveryTag, boolean multiple, Outcome outcome) throws IOException {
+		Lock held = multiple ? lock.writeLock() : lock.readLock();
+		held.lock();
+		try {
+			return multiple ? settleUpTo(deliveryTag, outcome) : settleOne(deliveryTag, outcome);
+		} finally {
+			held.unlock();
+		}
+	}
+	
+	/**
+	 * Settles a message unpacked from a pack, and the pack on the broker once all of its messages 
+	 * are settled
+	 */
+	void settlePacked(PackedDeliveryTag deliveryTag, boolean multiple, Outcome outcome) throws IOException {
+		Lock held = multiple ? lock.writeLock() : lock.readLock();
+		held.lock();
+		try {
+			PackedCarrier pack = deliveryTag.getCarrier();
+			long packTag = pack.getDeliveryTag().getDeliveryTag();
+			if(multiple) {
+				settleUpTo(packTag - 1, outcome);
+			}
+			if(pack.settle(deliveryTag.getIndex(), multiple, outcome)) {
+				settleOne(packTag, pack.getOutcome());
+			}
+		} finally {
+			held.unlock();
+		}
+	}
+	
+	private boolean settleOne(long deliveryTag, Outcome outcome) throws IOException {
+		if(!unsettled.remove(deliveryTag)) {
+			return false;
+		}
+		send(deliveryTag, false, outcome);
+		return true;
+	}
+	
+	/**
+	 * The broker settles every outstanding delivery up to the tag of a multiple settlement, and
+	 * fails the channel if that tag itself is not outstanding, so the multiple settlement is sent
+	 * for the highest unsettled tag instead
+	 */
+	private boolean settleUpTo(long deliveryTag, Outcome outcome) throws IOException {
+		for(PackedCarrier pack : packs.headMap(deliveryTag, true).values()) {
+			if(pack.settleAll(outcome) && pack.getOutcome() != outcome) {
+				//an earlier nack of one of its messages decides, it cannot be part of this settlement
+				settleOne(pack.getDeliveryTag().getDeliveryTag(), pack.getOutcome());
+			}
+		}
+		NavigableSet<Long> covered = unsettled.headSet(deliveryTag, true);
+		if(covered.isEmpty()) {
+			return false;
+		}
+		long highest = covered.last();
+		covered.clear();
+		send(highest, true, outcome);
+		return true;
+	}
+	
+	private void send(long deliveryTag, boolean multiple, Outcome outcome) throws IOException {
+		switch(outcome) {
+		case ACK:
+			channel.basicAck(deliveryTag, multiple);
+			break;
+		case REQUEUE:
+			channel.basicNack(deliveryTag, multiple, true);
+			break;
+		case REJECT:
+			if(multiple) {
+				channel.basicNack(deliveryTag, true, false);
+			} else {
+				channel.basicReject(deliveryTag, false);
+			}
+			break;
+		}
+	}
+}
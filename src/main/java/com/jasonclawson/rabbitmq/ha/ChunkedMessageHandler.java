@@ -0,0 +1,19 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Receives the messages reassembled by {@link ReassemblingHaConsumer}
+ */
+public interface ChunkedMessageHandler {
+	/**
+	 * @param envelope envelope of the last chunk
+	 * @param properties properties of the first chunk
+	 * @param body the reassembled body, only valid during the call
+	 * @param length the size of the body in bytes
+	 */
+	void handleMessage(HaEnvelope envelope, BasicProperties properties, InputStream body, long length) throws IOException;
+}
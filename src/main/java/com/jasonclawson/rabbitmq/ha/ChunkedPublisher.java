@@ -0,0 +1,97 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Publishes a large body read from a stream as a sequence of chunk messages, so neither end needs
+ * the whole body in memory and other channels get their frames out between chunks. Every chunk 
+ * carries the properties of the message plus headers with the stream id, its sequence number and 
+ * whether it is the last one. Consume them with {@link ReassemblingHaConsumer}.
+ * 
+ * The chunks of a stream must all be routed to the same queue, and are kept in order because 
+ * they are published on one channel.
+ */
+public class ChunkedPublisher {
+	public static final String STREAM_ID_HEADER = "x-ha-stream-id";
+	public static final String CHUNK_SEQUENCE_HEADER = "x-ha-chunk-seq";
+	public static final String LAST_CHUNK_HEADER = "x-ha-chunk-last";
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	
+	private final HaChannel channel;
+	private final int chunkSize;
+	
+	public ChunkedPublisher(HaChannel channel) {
+		this(channel, DEFAULT_CHUNK_SIZE);
+	}
+	
+	public ChunkedPublisher(HaChannel channel, int chunkSize) {
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive, was "+chunkSize);
+		}
+		this.channel = channel;
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * Reads the body to its end and publishes it in chunks. The stream is not closed.
+	 * @return the stream id
+	 */
+	public String publish(String exchange, String routingKey, BasicProperties properties, InputStream body) throws IOException {
+		String streamId = UUID.randomUUID().toString();
+		byte[] current = new byte[chunkSize];
+		byte[] next = new byte[chunkSize];
+		int currentLength = fill(body, current);
+		int sequence = 0;
+		while(true) {
+			//read ahead to know whether the current chunk is the last
+			int nextLength = currentLength < chunkSize ? -1 : fill(body, next);
+			boolean last = nextLength <= 0;
+			byte[] chunk = currentLength == chunkSize ? current : Arrays.copyOf(current, currentLength);
+			channel.basicPublish(exchange, routingKey, chunkProperties(properties, streamId, sequence++, last), chunk);
+			if(last) {
+				return streamId;
+			}
+			
+			if(chunk == current) {
+				//the body may still be referenced by a spool or retry, never reuse a published array
+				current = new byte[chunkSize];
+			}
+			byte[] swap = current;
+			current = next;
+			next = swap;
+			currentLength = nextLength;
+		}
+	}
+	
+	private static BasicProperties chunkProperties(BasicProperties properties, String streamId, int sequence, boolean last) {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		if(properties != null && properties.getHeaders() != null) {
+			headers.putAll(properties.getHeaders());
+		}
+		headers.put(STREAM_ID_HEADER, streamId);
+		headers.put(CHUNK_SEQUENCE_HEADER, sequence);
+		headers.put(LAST_CHUNK_HEADER, last);
+		AMQP.BasicProperties.Builder builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+		return builder.headers(headers).build();
+	}
+	
+	/**
+	 * @return the number of bytes read, less than the buffer size only at the end of the stream
+	 */
+	private static int fill(InputStream in, byte[] buffer) throws IOException {
+		int length = 0;
+		int read;
+		while(length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+			length += read;
+		}
+		return length;
+	}
+}
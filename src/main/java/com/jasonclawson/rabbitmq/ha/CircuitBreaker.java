@@ -0,0 +1,91 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets callers fail fast while the broker is unreachable instead of blocking on a reconnect that
+ * can take hours with the default retry settings.
+ * <ul>
+ * <li>CLOSED: the connection is up, or has been down for less than the open after period. Callers 
+ * wait for recovery.</li>
+ * <li>OPEN: the connection has been down for the open after period or longer. Callers fail 
+ * immediately with a {@link CircuitOpenException}.</li>
+ * <li>HALF_OPEN: a trial interval after the last trial caller, or after a reconnect gave up, the 
+ * next caller is let through to wait for recovery and the breaker goes back to OPEN. The breaker 
+ * closes as soon as the connection is recovered.</li>
+ * </ul>
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private final long openAfterNanos;
+	private final long trialIntervalNanos;
+	
+	private volatile boolean disconnected = false;
+	private volatile long disconnectedSince;
+	private final AtomicLong nextTrial = new AtomicLong(System.nanoTime());
+	
+	CircuitBreaker(long openAfter, long trialInterval) {
+		this.openAfterNanos = TimeUnit.MILLISECONDS.toNanos(openAfter);
+		this.trialIntervalNanos = TimeUnit.MILLISECONDS.toNanos(trialInterval);
+	}
+	
+	void disconnected() {
+		if(!disconnected) {
+			disconnectedSince = System.nanoTime();
+			disconnected = true;
+		}
+	}
+	
+	void connected() {
+		disconnected = false;
+	}
+	
+	/**
+	 * Called when a reconnect gave up. The breaker stays open for a trial interval, then lets a
+	 * trial caller through, which starts a new reconnect.
+	 */
+	void reconnectFailed() {
+		nextTrial.set(System.nanoTime() + trialIntervalNanos);
+	}
+	
+	public State getState() {
+		long now = System.nanoTime();
+		if(!isOpen(now)) {
+			return State.CLOSED;
+		}
+		return now - nextTrial.get() >= 0 ? State.HALF_OPEN : State.OPEN;
+	}
+	
+	/**
+	 * @return true if the breaker is open and the caller was let through as the trial caller
+	 * @throws CircuitOpenException if the breaker is open and the caller is not the trial caller
+	 */
+	boolean acquirePermission() throws CircuitOpenException {
+		long now = System.nanoTime();
+		if(!isOpen(now)) {
+			return false;
+		}
+		
+		long next = nextTrial.get();
+		if(now - next >= 0 && nextTrial.compareAndSet(next, now + trialIntervalNanos)) {
+			return true;
+		}
+		throw newOpenException(now);
+	}
+	
+	CircuitOpenException newOpenException(long now) {
+		return new CircuitOpenException(TimeUnit.NANOSECONDS.toMillis(now - disconnectedSince));
+	}
+	
+	boolean isOpen() {
+		return isOpen(System.nanoTime());
+	}
+	
+	private boolean isOpen(long now) {
+		return disconnected && now - disconnectedSince >= openAfterNanos;
+	}
+}
@@ -0,0 +1,11 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+
+public class CircuitOpenException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(long unreachableFor) {
+		super("RabbitMQ has been unreachable for "+unreachableFor+"ms. Failing fast until the connection is recovered");
+	}
+}
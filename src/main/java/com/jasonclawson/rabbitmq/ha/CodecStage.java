@@ -0,0 +1,67 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Applies a {@link BodyCodec} to bodies of at least the threshold size on publish, and reverses 
+ * it on delivery for messages with its content-encoding
+ */
+@Slf4j
+class CodecStage {
+	private final BodyCodec codec;
+	private final int threshold;
+	
+	CodecStage(BodyCodec codec, int threshold) {
+		this.codec = codec;
+		this.threshold = threshold;
+	}
+	
+	/**
+	 * @return the message to publish, unchanged if it is small or already has a content-encoding
+	 */
+	OutboundMessage encode(OutboundMessage message) throws IOException {
+		BasicProperties properties = message.getProperties();
+		if(message.getBody() == null || message.getBody().length < threshold 
+				|| (properties != null && properties.getContentEncoding() != null)) {
+			return message;
+		}
+		BasicProperties.Builder builder = properties == null ? new BasicProperties.Builder() : properties.builder();
+		return new OutboundMessage(message.getExchange(), message.getRoutingKey(), message.isMandatory(), 
+				builder.contentEncoding(codec.getContentEncoding()).build(), codec.encode(message.getBody()));
+	}
+	
+	boolean isEncoded(BasicProperties properties) {
+		return properties != null && codec.getContentEncoding().equals(properties.getContentEncoding());
+	}
+	
+	byte[] decode(byte[] body) throws IOException {
+		return codec.decode(body);
+	}
+	
+	/**
+	 * Decodes a delivered body. A body that cannot be decoded is returned as it is, so the 
+	 * delivery reaches the application with its content-encoding instead of failing the dispatch 
+	 * thread on every redelivery.
+	 * 
+	 * @return the decoded body, or null if it could not be decoded
+	 */
+	byte[] decodeDelivered(long deliveryTag, byte[] body) {
+		try {
+			return codec.decode(body);
+		} catch (IOException e) {
+			log.warn("Delivering message {} undecoded, its body cannot be decoded: {}", deliveryTag, e.toString());
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the properties of a decoded message, without the content-encoding
+	 */
+	BasicProperties decodedProperties(BasicProperties properties) {
+		return properties.builder().contentEncoding(null).build();
+	}
+}
@@ -0,0 +1,101 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Publishes last-value-wins streams, like prices or statuses. Messages are published by a sender
+ * thread; a message that has not been sent yet is replaced by a newer message with the same key. 
+ * While the channel is blocked by an outage or broker flow control, the backlog is therefore 
+ * bounded by the number of distinct keys, and on recovery only the latest value per key is sent.
+ * Keys are sent in the order they were first queued.
+ * 
+ * With a publish spool configured on the connection, publishes do not block during an outage 
+ * and every message goes to the spool.
+ */
+@Slf4j
+public class ConflatingPublisher {
+	private final HaChannel channel;
+	private final long retryDelay;
+	private final ConcurrentHashMap<String, OutboundMessage> pending = new ConcurrentHashMap<String, OutboundMessage>();
+	private final LinkedBlockingQueue<String> keys = new LinkedBlockingQueue<String>();
+	private final Thread sender;
+	private volatile boolean running = true;
+	
+	/**
+	 * @param retryDelay milliseconds to wait before publishing again after a failed publish
+	 */
+	public ConflatingPublisher(HaChannel channel, long retryDelay) {
+		this.channel = channel;
+		this.retryDelay = retryDelay;
+		sender = HaUtils.daemonThreadFactory("ha-conflating-publisher").newThread(new Runnable() {
+			@Override
+			public void run() {
+				send();
+			}
+		});
+		sender.start();
+	}
+	
+	/**
+	 * Queues the message, replacing the unsent message with the same key
+	 */
+	public void publish(String key, String exchange, String routingKey, BasicProperties properties, byte[] body) {
+		if(!running) {
+			throw new IllegalStateException("Conflating publisher is closed");
+		}
+		if(pending.put(key, new OutboundMessage(exchange, routingKey, properties, body)) == null) {
+			keys.add(key);
+		}
+	}
+	
+	/**
+	 * @return the number of keys with a message waiting to be sent
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * Stops the sender, unsent messages are dropped
+	 */
+	public void close() {
+		running = false;
+		sender.interrupt();
+	}
+	
+	private void send() {
+		while(running) {
+			String key;
+			try {
+				key = keys.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			OutboundMessage message = pending.remove(key);
+			if(message == null) {
+				continue;
+			}
+			try {
+				channel.basicPublish(message.getExchange(), message.getRoutingKey(), message.getProperties(), message.getBody());
+			} catch (Exception e) {
+				log.warn("Unable to publish message for key {}, retrying in {} ms: {}", key, retryDelay, e.toString());
+				//keep it unless a newer value came in meanwhile
+				if(pending.putIfAbsent(key, message) == null) {
+					keys.add(key);
+				}
+				try {
+					TimeUnit.MILLISECONDS.sleep(retryDelay);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+}
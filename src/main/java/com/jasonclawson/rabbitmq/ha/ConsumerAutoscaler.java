@@ -0,0 +1,157 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.Queue.DeclareOk;
+
+/**
+ * Grows and shrinks a {@link HaConsumerGroup} with the backlog of its queue. Every poll the 
+ * queue depth and consumer count are read with a passive declare on a side channel, and combined 
+ * with the delivery rate of the group's consumers to estimate how many consumers drain the 
+ * backlog within the target drain time. Consumers of other processes on the same queue are 
+ * assumed to be as fast as ours.
+ * 
+ * The group scales up to the estimate at once and down one consumer at a time, each direction 
+ * with its own cooldown, always between the minimum and maximum size.
+ */
+@Slf4j
+public class ConsumerAutoscaler implements Runnable {
+	private final HaConsumerGroup group;
+	private final int minConsumers;
+	private final int maxConsumers;
+	
+	/**
+	 * Seconds in which the backlog should be consumed
+	 */
+	@Getter
+	@Setter
+	private volatile double targetDrainTime = 10;
+	
+	/**
+	 * Milliseconds after a resize before the group is grown again
+	 */
+	@Getter
+	@Setter
+	private volatile long scaleUpCooldown = 10000;
+	
+	/**
+	 * Milliseconds after a resize before the group is shrunk again
+	 */
+	@Getter
+	@Setter
+	private volatile long scaleDownCooldown = 60000;
+	
+	private ScheduledExecutorService scheduler;
+	private HaChannel sideChannel;
+	
+	//only touched by the scheduler thread
+	private long lastDelivered;
+	private long lastPoll = System.nanoTime();
+	private long lastResize;
+	private boolean resized = false;
+	
+	public ConsumerAutoscaler(HaConsumerGroup group, int minConsumers, int maxConsumers) {
+		this.group = group;
+		this.minConsumers = Math.max(0, minConsumers);
+		this.maxConsumers = Math.max(this.minConsumers, maxConsumers);
+	}
+	
+	/**
+	 * Brings the group within bounds and starts polling the queue
+	 * @param pollInterval milliseconds between polls
+	 */
+	public synchronized void start(long pollInterval) throws IOException {
+		if(scheduler != null) {
+			return;
+		}
+		sideChannel = group.getConnection().createChannel();
+		int size = group.getSize();
+		if(size < minConsumers || size > maxConsumers) {
+			group.resize(Math.max(minConsumers, Math.min(maxConsumers, size)));
+		}
+		lastDelivered = group.getDeliveredCount();
+		lastPoll = System.nanoTime();
+		scheduler = Executors.newSingleThreadScheduledExecutor(HaUtils.daemonThreadFactory("ha-consumer-autoscaler"));
+		scheduler.scheduleWithFixedDelay(this, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stop() {
+		if(scheduler == null) {
+			return;
+		}
+		scheduler.shutdownNow();
+		scheduler = null;
+		try {
+			sideChannel.close();
+		} catch (Exception e) {
+			log.debug("Error closing autoscaler channel {}", e.toString());
+		}
+	}
+	
+	@Override
+	public void run() {
+		try {
+			poll();
+		} catch (Exception e) {
+			//the side channel or the group is recovering, we try again next poll
+			log.warn("Unable to autoscale consumers of queue {}: {}", group.getQueue(), e.toString());
+		}
+	}
+	
+	private void poll() throws IOException {
+		DeclareOk queue = sideChannel.queueDeclarePassive(group.getQueue());
+		long now = System.nanoTime();
+		long delivered = group.getDeliveredCount();
+		double seconds = (now - lastPoll) / 1e9;
+		double rate = (delivered - lastDelivered) / seconds;
+		lastDelivered = delivered;
+		lastPoll = now;
+		
+		int size = group.getSize();
+		int desired = desiredSize(queue.getMessageCount(), queue.getConsumerCount(), size, rate);
+		desired = Math.max(minConsumers, Math.min(maxConsumers, desired));
+		
+		long sinceResize = resized ? TimeUnit.NANOSECONDS.toMillis(now - lastResize) : Long.MAX_VALUE;
+		if(desired > size && sinceResize >= scaleUpCooldown) {
+			resize(size, desired, queue, rate, now);
+		} else if(desired < size && sinceResize >= scaleDownCooldown) {
+			resize(size, size - 1, queue, rate, now);
+		}
+	}
+	
+	private int desiredSize(int backlog, int brokerConsumers, int size, double rate) {
+		if(backlog == 0) {
+			return size - 1;
+		}
+		if(size == 0 || rate == 0) {
+			//no measurement to go by, but there is work
+			return size + 1;
+		}
+		
+		double perConsumerRate = rate / size;
+		int otherConsumers = Math.max(0, brokerConsumers - size);
+		int needed = (int) Math.ceil(backlog / (perConsumerRate * targetDrainTime));
+		int desired = needed - otherConsumers;
+		
+		if(desired < size && backlog / (perConsumerRate * brokerConsumers) > targetDrainTime / 2) {
+			//only shrink when the backlog is well under control, so we do not flap
+			return size;
+		}
+		return desired;
+	}
+	
+	private void resize(int size, int desired, DeclareOk queue, double rate, long now) throws IOException {
+		log.info("Resizing consumers of queue {} from {} to {}, backlog {}, broker consumers {}, rate {}/s", 
+				group.getQueue(), size, desired, queue.getMessageCount(), queue.getConsumerCount(), rate);
+		lastResize = now;
+		resized = true;
+		group.resize(desired);
+	}
+}
@@ -0,0 +1,148 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Suppresses redelivered duplicates. After a reconnect the broker redelivers every unacked message, 
+ * including those that were processed but whose ack was lost with the old channel. This consumer 
+ * remembers the keys of acked messages for a while, and acks and skips redeliveries of them 
+ * without passing them to the wrapped consumer.
+ * 
+ * Keys are only remembered once the application acks the message, so deliveries that were 
+ * buffered but never processed are still passed on when they are redelivered. On an autoAck 
+ * consumer there are no acks, keys are remembered once the wrapped consumer returns.
+ */
+@Slf4j
+public class DeduplicatingHaConsumer extends ForwardingHaConsumer implements HaAckListener {
+	private final HaChannel channel;
+	private final boolean autoAck;
+	private final MessageKeyExtractor keyExtractor;
+	private final ExpiringSeenSet seen;
+	
+	/**
+	 * Fingerprints of delivered messages that have not been acked yet
+	 */
+	private final ConcurrentHashMap<DeliveryTag, Long> unacked = new ConcurrentHashMap<DeliveryTag, Long>();
+	private volatile long lastInternalChannelId = -1;
+	
+	/**
+	 * @param capacity the maximum number of keys remembered
+	 * @param ttl how long, in milliseconds, a key is remembered
+	 */
+	public DeduplicatingHaConsumer(HaChannel channel, HaConsumer delegate, int capacity, long ttl) {
+		this(channel, delegate, MessageKeyExtractor.MESSAGE_ID, capacity, ttl);
+	}
+	
+	public DeduplicatingHaConsumer(HaChannel channel, HaConsumer delegate, MessageKeyExtractor keyExtractor, int capacity, long ttl) {
+		this(channel, delegate, false, keyExtractor, capacity, ttl);
+	}
+	
+	/**
+	 * @param autoAck must match the autoAck flag the consumer is subscribed with
+	 */
+	public DeduplicatingHaConsumer(HaChannel channel, HaConsumer delegate, boolean autoAck, MessageKeyExtractor keyExtractor, int capacity, long ttl) {
+		super(delegate);
+		this.channel = channel;
+		this.autoAck = autoAck;
+		this.keyExtractor = keyExtractor;
+		this.seen = new ExpiringSeenSet(capacity, ttl);
+		if(!autoAck) {
+			channel.addAckListener(this);
+		}
+	}
+	
+	@Override
+	public void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) throws IOException {
+		String key = keyExtractor.getKey(envelope, properties, body);
+		if(key == null) {
+			delegate.handleDelivery(consumerTag, envelope, properties, body);
+			return;
+		}
+		
+		long fingerprint = ExpiringSeenSet.fingerprint(key);
+		if(envelope.isRedeliver() && seen.contains(fingerprint)) {
+			log.debug("Skipping redelivered duplicate {}", key);
+			if(!autoAck) {
+				channel.basicAck(envelope.getDeliveryTag(), false);
+			}
+			return;
+		}
+		
+		if(autoAck) {
+			delegate.handleDelivery(consumerTag, envelope, properties, body);
+			seen.add(fingerprint);
+			return;
+		}
+		
+		forgetOldChannels(envelope.getDeliveryTag().getInternalChannelId());
+		unacked.put(envelope.getDeliveryTag(), fingerprint);
+		delegate.handleDelivery(consumerTag, envelope, properties, body);
+	}
+	
+	@Override
+	public void handleAck(DeliveryTag deliveryTag, boolean multiple) {
+		if(!multiple) {
+			Long fingerprint = unacked.remove(deliveryTag);
+			if(fingerprint != null) {
+				seen.add(fingerprint);
+			}
+			return;
+		}
+		
+		for(Iterator<Entry<DeliveryTag, Long>> i = unacked.entrySet().iterator(); i.hasNext();) {
+			Entry<DeliveryTag, Long> entry = i.next();
+			if(isCoveredBy(entry.getKey(), deliveryTag)) {
+				seen.add(entry.getValue());
+				i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * A nacked message was not processed, so its redelivery must not be skipped
+	 */
+	@Override
+	public void handleNack(DeliveryTag deliveryTag, boolean multiple, boolean requeue) {
+		if(!multiple) {
+			unacked.remove(deliveryTag);
+			return;
+		}
+		
+		for(Iterator<DeliveryTag> i = unacked.keySet().iterator(); i.hasNext();) {
+			if(isCoveredBy(i.next(), deliveryTag)) {
+				i.remove();
+			}
+		}
+	}
+	
+	private static boolean isCoveredBy(DeliveryTag tag, DeliveryTag multipleTag) {
+		return tag.getInternalChannelId() == multipleTag.getInternalChannelId() 
+				&& tag.getDeliveryTag() <= multipleTag.getDeliveryTag();
+	}
+	
+	/**
+	 * Deliveries of the channel before the previous one will never be acked anymore. We keep those 
+	 * of the previous channel since they may still be processed and acked after a reconnect.
+	 */
+	private void forgetOldChannels(long internalChannelId) {
+		long previous = lastInternalChannelId;
+		if(internalChannelId == previous) {
+			return;
+		}
+		lastInternalChannelId = internalChannelId;
+		
+		for(Iterator<DeliveryTag> i = unacked.keySet().iterator(); i.hasNext();) {
+			long tagChannelId = i.next().getInternalChannelId();
+			if(tagChannelId != internalChannelId && tagChannelId != previous) {
+				i.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression from java.util.zip. Deflaters and inflaters hold native memory and are 
+ * expensive to create, so they are pooled and reused, and every thread reuses its own scratch 
+ * buffer. Only the result array is allocated per message.
+ */
+public class DeflateCodec implements BodyCodec {
+	public static final String CONTENT_ENCODING = "deflate";
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+	
+	private final int level;
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[INITIAL_BUFFER_SIZE];
+		}
+	};
+	
+	public DeflateCodec() {
+		this(Deflater.BEST_SPEED);
+	}
+	
+	/**
+	 * @param level compression level, see {@link Deflater}
+	 */
+	public DeflateCodec(int level) {
+		this.level = level;
+	}
+	
+	@Override
+	public String getContentEncoding() {
+		return CONTENT_ENCODING;
+	}
+
+	@Override
+	public byte[] encode(byte[] body) throws IOException {
+		Deflater deflater = deflaters.poll();
+		if(deflater == null) {
+			deflater = new Deflater(level);
+		}
+		try {
+			deflater.setInput(body);
+			deflater.finish();
+			byte[] buffer = scratch.get();
+			int length = 0;
+			while(!deflater.finished()) {
+				if(length == buffer.length) {
+					buffer = grow(buffer);
+				}
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			return Arrays.copyOf(buffer, length);
+		} finally {
+			deflater.reset();
+			deflaters.add(deflater);
+		}
+	}
+
+	@Override
+	public byte[] decode(byte[] body) throws IOException {
+		Inflater inflater = inflaters.poll();
+		if(inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			inflater.setInput(body);
+			byte[] buffer = scratch.get();
+			int length = 0;
+			while(!inflater.finished()) {
+				if(length == buffer.length) {
+					buffer = grow(buffer);
+				}
+				int inflated = inflater.inflate(buffer, length, buffer.length - length);
+				if(inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated deflate body");
+				}
+				length += inflated;
+			}
+			return Arrays.copyOf(buffer, length);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt deflate body", e);
+		} finally {
+			inflater.reset();
+			inflaters.add(inflater);
+		}
+	}
+	
+	private byte[] grow(byte[] buffer) {
+		byte[] larger = Arrays.copyOf(buffer, buffer.length * 2);
+		scratch.set(larger);
+		return larger;
+	}
+}
@@ -0,0 +1,27 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FIFO buffer holding the deliveries a {@link HaQueuingConsumer} has received but the 
+ * application has not taken yet
+ */
+public interface DeliveryBuffer {
+	
+	public void put(HaDelivery delivery) throws IOException;
+	
+	public HaDelivery take() throws InterruptedException;
+	
+	/**
+	 * @return the next delivery or null if timed out
+	 */
+	public HaDelivery poll(long timeout, TimeUnit unit) throws InterruptedException;
+	
+	/**
+	 * Discards all buffered deliveries. Called on reconnect, the broker redelivers them.
+	 */
+	public void clear();
+	
+	public int size();
+}
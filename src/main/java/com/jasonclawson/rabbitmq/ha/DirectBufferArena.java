@@ -0,0 +1,197 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct memory for message bodies. Memory is reserved in slabs, each slab is cut into 
+ * equally sized blocks of one size class, and size classes are powers of two between the 
+ * minimum and maximum block size. Released blocks go back to the free list of their class, so 
+ * slabs are reused and never returned to the system. Requests larger than the maximum block 
+ * size get their own unpooled direct buffer.
+ * 
+ * An arena can be shared by many consumers.
+ */
+public class DirectBufferArena {
+	public static final int DEFAULT_MIN_BLOCK_SIZE = 4 * 1024;
+	public static final int DEFAULT_MAX_BLOCK_SIZE = 256 * 1024;
+	public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+	
+	private final int minBlockSize;
+	private final int maxBlockSize;
+	private final int slabSize;
+	private final long maxBytes;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] freeBlocks;
+	
+	/**
+	 * bytes of the blocks handed out and not released yet
+	 */
+	private final AtomicLong bytesInUse = new AtomicLong();
+	
+	/**
+	 * direct memory held by this arena, in use or free
+	 */
+	private final AtomicLong bytesReserved = new AtomicLong();
+	
+	/**
+	 * @param maxBytes limit on the direct memory reserved by this arena
+	 */
+	public DirectBufferArena(long maxBytes) {
+		this(DEFAULT_MIN_BLOCK_SIZE, DEFAULT_MAX_BLOCK_SIZE, DEFAULT_SLAB_SIZE, maxBytes);
+	}
+	
+	/**
+	 * @param minBlockSize smallest size class, rounded up to a power of two
+	 * @param maxBlockSize largest size class, rounded up to a power of two
+	 * @param slabSize direct memory reserved at a time for a size class
+	 * @param maxBytes limit on the direct memory reserved by this arena
+	 */
+	@SuppressWarnings("unchecked")
+	public DirectBufferArena(int minBlockSize, int maxBlockSize, int slabSize, long maxBytes) {
+		this.minBlockSize = roundUpToPowerOfTwo(minBlockSize);
+		this.maxBlockSize = Math.max(this.minBlockSize, roundUpToPowerOfTwo(maxBlockSize));
+		this.slabSize = slabSize;
+		this.maxBytes = maxBytes;
+		
+		int classes = sizeClass(this.maxBlockSize) + 1;
+		freeBlocks = new ConcurrentLinkedQueue[classes];
+		for(int i=0; i<classes; i++) {
+			freeBlocks[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+	
+	/**
+	 * Copies the bytes into a block of this arena
+	 * @return the block or null if the arena is at its limit
+	 */
+	public Block copyOf(byte[] bytes) {
+		Block block = allocate(bytes.length);
+		if(block != null) {
+			ByteBuffer target = block.memory.duplicate();
+			target.clear();
+			target.put(bytes);
+		}
+		return block;
+	}
+	
+	/**
+	 * @return a block of at least size bytes or null if the arena is at its limit
+	 */
+	public Block allocate(int size) {
+		if(size > maxBlockSize) {
+			if(!reserve(size)) {
+				return null;
+			}
+			return inUse(new Block(ByteBuffer.allocateDirect(size), -1, size));
+		}
+		
+		int sizeClass = sizeClass(size);
+		ByteBuffer memory = freeBlocks[sizeClass].poll();
+		while(memory == null) {
+			if(!addSlab(sizeClass)) {
+				return null;
+			}
+			memory = freeBlocks[sizeClass].poll();
+		}
+		return inUse(new Block(memory, sizeClass, size));
+	}
+	
+	public long getBytesInUse() {
+		return bytesInUse.get();
+	}
+	
+	public long getBytesReserved() {
+		return bytesReserved.get();
+	}
+	
+	private Block inUse(Block block) {
+		bytesInUse.addAndGet(block.memory.capacity());
+		return block;
+	}
+	
+	private void release(Block block) {
+		bytesInUse.addAndGet(-block.memory.capacity());
+		if(block.sizeClass < 0) {
+			//unpooled, the garbage collector frees it
+			bytesReserved.addAndGet(-block.memory.capacity());
+		} else {
+			freeBlocks[block.sizeClass].add(block.memory);
+		}
+	}
+	
+	private boolean addSlab(int sizeClass) {
+		int blockSize = minBlockSize << sizeClass;
+		int blocks = Math.max(1, slabSize / blockSize);
+		if(!reserve(blocks * blockSize)) {
+			return false;
+		}
+		
+		ByteBuffer slab = ByteBuffer.allocateDirect(blocks * blockSize);
+		for(int i=0; i<blocks; i++) {
+			slab.limit((i + 1) * blockSize);
+			slab.position(i * blockSize);
+			freeBlocks[sizeClass].add(slab.slice());
+		}
+		return true;
+	}
+	
+	private boolean reserve(long bytes) {
+		while(true) {
+			long reserved = bytesReserved.get();
+			if(reserved + bytes > maxBytes) {
+				return false;
+			}
+			if(bytesReserved.compareAndSet(reserved, reserved + bytes)) {
+				return true;
+			}
+		}
+	}
+	
+	private int sizeClass(int size) {
+		int sizeClass = 0;
+		while((minBlockSize << sizeClass) < size) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+	
+	private static int roundUpToPowerOfTwo(int value) {
+		int highest = Integer.highestOneBit(Math.max(1, value));
+		return highest == value ? value : highest << 1;
+	}
+	
+	/**
+	 * Memory handed out by the arena. Must be released exactly once, after which its contents 
+	 * may be overwritten by another allocation.
+	 */
+	public final class Block {
+		private final ByteBuffer memory;
+		private final int sizeClass;
+		private final int length;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		
+		private Block(ByteBuffer memory, int sizeClass, int length) {
+			this.memory = memory;
+			this.sizeClass = sizeClass;
+			this.length = length;
+		}
+		
+		/**
+		 * @return a read only view of the bytes of this block
+		 */
+		public ByteBuffer asReadOnlyBuffer() {
+			ByteBuffer view = memory.asReadOnlyBuffer();
+			view.clear();
+			view.limit(length);
+			return view;
+		}
+		
+		public void release() {
+			if(released.compareAndSet(false, true)) {
+				DirectBufferArena.this.release(this);
+			}
+		}
+	}
+}
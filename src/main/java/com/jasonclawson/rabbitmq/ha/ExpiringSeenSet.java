@@ -0,0 +1,141 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded set of 64 bit key fingerprints that forgets keys after a time to live. Keys are kept 
+ * in an open addressing table of primitive longs plus a ring buffer in insertion order, which is 
+ * used to expire and evict the oldest keys. This costs about 40 bytes per key, a fraction of a 
+ * HashSet of Strings.
+ */
+class ExpiringSeenSet {
+	private static final long EMPTY = 0;
+	
+	private final long ttlNanos;
+	private final int capacity;
+	
+	/**
+	 * open addressing with linear probing, at most half full
+	 */
+	private final long[] table;
+	private final int mask;
+	
+	/**
+	 * fingerprints and insertion times, oldest at head
+	 */
+	private final long[] ringFingerprints;
+	private final long[] ringTimes;
+	private int head = 0;
+	private int size = 0;
+	
+	ExpiringSeenSet(int capacity, long ttl) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive, was "+capacity);
+		}
+		this.capacity = capacity;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+		int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		this.table = new long[tableSize];
+		this.mask = tableSize - 1;
+		this.ringFingerprints = new long[capacity];
+		this.ringTimes = new long[capacity];
+	}
+	
+	/**
+	 * 64 bit FNV-1a hash of the key. Never returns the empty marker.
+	 */
+	static long fingerprint(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for(int i=0; i<key.length(); i++) {
+			char c = key.charAt(i);
+			hash ^= (c & 0xff);
+			hash *= 0x100000001b3L;
+			hash ^= (c >>> 8);
+			hash *= 0x100000001b3L;
+		}
+		return hash == EMPTY ? 1 : hash;
+	}
+	
+	synchronized boolean contains(long fingerprint) {
+		expire(System.nanoTime());
+		return indexOf(fingerprint) >= 0;
+	}
+	
+	synchronized void add(long fingerprint) {
+		long now = System.nanoTime();
+		expire(now);
+		if(indexOf(fingerprint) >= 0) {
+			return;
+		}
+		if(size == capacity) {
+			evictOldest();
+		}
+		
+		int i = slot(fingerprint);
+		while(table[i] != EMPTY) {
+			i = (i + 1) & mask;
+		}
+		table[i] = fingerprint;
+		
+		int tail = (head + size) % capacity;
+		ringFingerprints[tail] = fingerprint;
+		ringTimes[tail] = now;
+		size++;
+	}
+	
+	synchronized int size() {
+		return size;
+	}
+	
+	private void expire(long now) {
+		while(size > 0 && now - ringTimes[head] > ttlNanos) {
+			evictOldest();
+		}
+	}
+	
+	private void evictOldest() {
+		remove(ringFingerprints[head]);
+		head = (head + 1) % capacity;
+		size--;
+	}
+	
+	private int slot(long fingerprint) {
+		return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+	
+	private int indexOf(long fingerprint) {
+		int i = slot(fingerprint);
+		while(table[i] != EMPTY) {
+			if(table[i] == fingerprint) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Removes by shifting later entries of the probe sequence back, so no tombstones are needed
+	 */
+	private void remove(long fingerprint) {
+		int i = indexOf(fingerprint);
+		if(i < 0) {
+			return;
+		}
+		
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(table[j] == EMPTY) {
+				break;
+			}
+			int k = slot(table[j]);
+			boolean staysPut = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+			if(!staysPut) {
+				table[i] = table[j];
+				i = j;
+			}
+		}
+		table[i] = EMPTY;
+	}
+}
@@ -0,0 +1,55 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Passes every callback, including {@link ResettableConsumer#reset()}, on to a delegate. 
+ * Extend it to intercept some of them.
+ */
+class ForwardingHaConsumer implements HaConsumer, ResettableConsumer {
+	protected final HaConsumer delegate;
+	
+	ForwardingHaConsumer(HaConsumer delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void handleConsumeOk(String consumerTag) {
+		delegate.handleConsumeOk(consumerTag);
+	}
+
+	@Override
+	public void handleCancelOk(String consumerTag) {
+		delegate.handleCancelOk(consumerTag);
+	}
+
+	@Override
+	public void handleCancel(String consumerTag) throws IOException {
+		delegate.handleCancel(consumerTag);
+	}
+
+	@Override
+	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+		delegate.handleShutdownSignal(consumerTag, sig);
+	}
+
+	@Override
+	public void handleRecoverOk(String consumerTag) {
+		delegate.handleRecoverOk(consumerTag);
+	}
+
+	@Override
+	public void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) throws IOException {
+		delegate.handleDelivery(consumerTag, envelope, properties, body);
+	}
+
+	@Override
+	public void reset() {
+		if(delegate instanceof ResettableConsumer) {
+			((ResettableConsumer) delegate).reset();
+		}
+	}
+}
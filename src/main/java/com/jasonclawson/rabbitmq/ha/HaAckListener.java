@@ -0,0 +1,18 @@
+package com.jasonclawson.rabbitmq.ha;
+
+/**
+ * Told about the acks, nacks and rejects made on a {@link HaChannel}, before they are sent to the 
+ * broker. Listeners are called on the acking thread and should return quickly.
+ */
+public interface HaAckListener {
+	/**
+	 * Called when {@link HaChannel#basicAck(DeliveryTag, boolean)} is called
+	 */
+	void handleAck(DeliveryTag deliveryTag, boolean multiple);
+	
+	/**
+	 * Called when {@link HaChannel#basicNack(DeliveryTag, boolean, boolean)} or 
+	 * {@link HaChannel#basicReject(DeliveryTag, boolean)} is called
+	 */
+	void handleNack(DeliveryTag deliveryTag, boolean multiple, boolean requeue);
+}
@@ -1,6 +1,7 @@
 package com.jasonclawson.rabbitmq.ha;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
@@ -511,6 +512,43 @@ public interface HaChannel extends ShutdownNotifier {
      * @throws java.io.IOException if an error is encountered
      */
     GetResponse basicGet(String queue, boolean autoAck) throws IOException;
+    
+    /**
+     * Retrieve up to maxMessages messages from a queue in a few round trips instead of one per 
+     * message. The messages are fetched with a short-lived consumer whose prefetch is bounded by 
+     * the number of ready messages, up to maxMessages, and must be acknowledged. The channel's 
+     * basicQos is restored afterwards.
+     * @param queue the name of the queue
+     * @param maxMessages the maximum number of messages to return
+     * @param timeout milliseconds to wait in total, for messages to become ready if there are none, 
+     * and for the ready ones to arrive
+     * @return the deliveries, empty if no message became ready within the timeout
+     * @throws java.io.IOException if an error is encountered
+     */
+    List<HaDelivery> basicGetBatch(String queue, int maxMessages, long timeout) throws IOException;
+    
+    /**
+     * Publish messages in one transaction. The channel must have been made transactional with 
+     * {@link #txSelect()} first. If the connection is lost before the commit completes, the broker rolls the transaction 
+     * back and the whole batch is published and committed again on the recovered channel. A 
+     * connection lost while the commit-ok is on its way may cause the batch to be published twice.
+     * Messages published on this channel outside the batch but in the same transaction are 
+     * committed with it.
+     * @param messages the messages to publish
+     * @throws java.io.IOException if the channel is not transactional or an error is encountered
+     */
+    void txPublishBatch(List<OutboundMessage> messages) throws IOException;
+    
+    /**
+     * Publish messages back to back and wait once for the broker to confirm all of them. The 
+     * channel is put in confirm mode if it is not yet. Nacked messages are published again, and if 
+     * the connection is lost, only the messages that were not confirmed yet are published again on 
+     * the recovered channel, so some of those may be delivered twice. Do not publish on this 
+     * channel from other threads during the call.
+     * @param messages the messages to publish, the list is not modified
+     * @throws java.io.IOException if an error is encountered or messages keep being nacked
+     */
+    void publishBatch(List<OutboundMessage> messages) throws IOException;
 
     /**
      * Cancel a consumer. Calls the consumer's {@link Consumer#handleCancelOk}
@@ -669,4 +707,44 @@ public interface HaChannel extends ShutdownNotifier {
 			String consumerTag, boolean noLocal, boolean exclusive,
 			Map<String, Object> arguments, HaConsumer callback)
 			throws IOException;
-}
\ No newline at end of file
+	
+	/**
+	 * Nack a delivery and ignore later acks, nacks and rejects of it. Use it to give up on a 
+	 * delivery that is still being processed, without the late ack of the processing thread 
+	 * failing the channel with an unknown delivery tag. Ack listeners are not told until that late 
+	 * ack, nack or reject, as the delivery may still be in use.
+	 * @param deliveryTag the tag of the delivery to give up
+	 * @param requeue true if the delivery should be requeued
+	 * @throws java.io.IOException if an error is encountered
+	 */
+	public void abandonDelivery(DeliveryTag deliveryTag, boolean requeue) throws IOException;
+	
+	/**
+	 * Add a {@link HaAckListener}. It is told about every ack, nack and reject made on this channel,
+	 * including those for deliveries of a previous channel that are not sent to the broker.
+	 * @param listener the listener to add
+	 */
+	public void addAckListener(HaAckListener listener);
+	
+	/**
+	 * Remove a {@link HaAckListener}.
+	 * @param listener the listener to remove
+	 * @return <code><b>true</b></code> if the listener was found and removed,
+	 * <code><b>false</b></code> otherwise
+	 */
+	public boolean removeAckListener(HaAckListener listener);
+	
+	/**
+	 * Add a {@link HaChannelRecoveryListener}, called every time this channel is reopened.
+	 * @param listener the listener to add
+	 */
+	public void addRecoveryListener(HaChannelRecoveryListener listener);
+	
+	/**
+	 * Remove a {@link HaChannelRecoveryListener}.
+	 * @param listener the listener to remove
+	 * @return <code><b>true</b></code> if the listener was found and removed,
+	 * <code><b>false</b></code> otherwise
+	 */
+	public boolean removeRecoveryListener(HaChannelRecoveryListener listener);
+}
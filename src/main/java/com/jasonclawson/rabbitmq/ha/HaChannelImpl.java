@@ -1,18 +1,43 @@
 package com.jasonclawson.rabbitmq.ha;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import lombok.AccessLevel;
 import lombok.Delegate;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import com.jasonclawson.rabbitmq.ha.ChannelSettlements.Outcome;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ShutdownSignalException;
 
 @Slf4j
 public class HaChannelImpl implements HaChannel {
 	private static AtomicLong HA_CHANNEL_ID_GENERATOR = new AtomicLong(0);
+	private static final int MAX_BATCH_PUBLISH_ATTEMPTS = 5;
+	private static final long GET_BATCH_POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
 	
 	//private final HaConnectionProxy haConnection;
 	
@@ -22,9 +47,34 @@ public class HaChannelImpl implements HaChannel {
 	@Getter
 	private volatile long internalChannelId;
 	
+	/**
+	 * Set once transactional mode was selected on the current delegate
+	 */
+	private volatile boolean txSelected = false;
+	
+	/**
+	 * Set once confirm mode was selected on the current delegate
+	 */
+	private volatile boolean confirmSelected = false;
+	
+	/**
+	 * Compresses or otherwise encodes published bodies and decodes delivered ones, null for none
+	 */
+	@Setter(AccessLevel.PACKAGE)
+	private volatile CodecStage codecStage;
+	
+	/**
+	 * Deliveries of the current delegate that are not settled yet
+	 */
+	private volatile ChannelSettlements settlements;
+	
+	private final List<HaAckListener> ackListeners = new CopyOnWriteArrayList<HaAckListener>();
+	private final List<HaChannelRecoveryListener> recoveryListeners = new CopyOnWriteArrayList<HaChannelRecoveryListener>();
+	
 	public HaChannelImpl(Channel channelDelegate) {
 		internalChannelId = HA_CHANNEL_ID_GENERATOR.incrementAndGet();
 		this.channelDelegate = channelDelegate;
+		this.settlements = new ChannelSettlements(internalChannelId, channelDelegate);
 	}
 	
 	protected void refreshChannelDelegate(Channel channelDelegate) {
@@ -43,6 +93,11 @@ public class HaChannelImpl implements HaChannel {
 		internalChannelId = HA_CHANNEL_ID_GENERATOR.incrementAndGet();
 		log.info("New internal channel id {} -> {}", oldChannelId, internalChannelId);
 		this.channelDelegate = channelDelegate;
+		//a recorded txSelect or confirmSelect is replayed on the new delegate after this
+		this.txSelected = false;
+		this.confirmSelected = false;
+		//the broker requeued the unsettled deliveries with the old channel, their late acks fail on the channel id
+		this.settlements = new ChannelSettlements(internalChannelId, channelDelegate);
 	}
 
 	/* (non-Javadoc)
@@ -51,13 +106,16 @@ public class HaChannelImpl implements HaChannel {
 	@Override
 	public void basicAck(DeliveryTag deliveryTag, boolean multiple) throws IOException {
 		log.info("Calling basicAck for {}", deliveryTag);
+		for(HaAckListener listener : ackListeners) {
+			listener.handleAck(deliveryTag, multiple);
+		}
 		try {
 			this.assertValidOperationForChannel(deliveryTag, "basicAck");
 		} catch (Exception e) {
 			System.out.println("+++++++++++++++++++++++++");
 			return;
 		}
-		channelDelegate.basicAck(deliveryTag.getDeliveryTag(), multiple);
+		settle(deliveryTag, multiple, Outcome.ACK);
 	}
 
 	/* (non-Javadoc)
@@ -65,8 +123,11 @@ public class HaChannelImpl implements HaChannel {
 	 */
 	@Override
 	public void basicNack(DeliveryTag deliveryTag, boolean multiple, boolean requeue) throws IOException {
+		for(HaAckListener listener : ackListeners) {
+			listener.handleNack(deliveryTag, multiple, requeue);
+		}
 		this.assertValidOperationForChannel(deliveryTag, "basicNack");
-		channelDelegate.basicNack(deliveryTag.getDeliveryTag(), multiple, requeue);
+		settle(deliveryTag, multiple, Outcome.of(false, requeue));
 	}
 
 	/* (non-Javadoc)
@@ -75,8 +136,28 @@ public class HaChannelImpl implements HaChannel {
 	@Override
 	public void basicReject(DeliveryTag deliveryTag, boolean requeue)
 			throws IOException {
+		for(HaAckListener listener : ackListeners) {
+			listener.handleNack(deliveryTag, false, requeue);
+		}
 		this.assertValidOperationForChannel(deliveryTag, "basicReject");
-		channelDelegate.basicReject(deliveryTag.getDeliveryTag(), requeue);
+		settle(deliveryTag, false, Outcome.of(false, requeue));
+	}
+	
+	/**
+	 * Settles a delivery on the delegate it came from. Nothing is sent if it was settled already, 
+	 * for example because it was abandoned.
+	 */
+	private void settle(DeliveryTag deliveryTag, boolean multiple, Outcome outcome) throws IOException {
+		ChannelSettlements settlements = this.settlements;
+		if(deliveryTag.getInternalChannelId() != settlements.getInternalChannelId()) {
+			//replaced since the caller checked
+			throw new ChannelMismatchException(deliveryTag.getInternalChannelId(), settlements.getInternalChannelId(), outcome.getOperation());
+		}
+		if(deliveryTag instanceof PackedDeliveryTag) {
+			settlements.settlePacked((PackedDeliveryTag) deliveryTag, multiple, outcome);
+		} else if(!settlements.settle(deliveryTag.getDeliveryTag(), multiple, outcome)) {
+			log.debug("Ignoring {} of {}, it is already settled", outcome.getOperation(), deliveryTag);
+		}
 	}
 
 	/* (non-Javadoc)
@@ -84,7 +165,8 @@ public class HaChannelImpl implements HaChannel {
 	 */
 	@Override
 	public String basicConsume(String queue, HaConsumer callback) throws IOException {
-		return channelDelegate.basicConsume(queue, new HaProxyConsumer(this.internalChannelId, callback));
+		ChannelSettlements settlements = this.settlements;
+		return settlements.getChannel().basicConsume(queue, proxyConsumer(settlements, false, callback));
 	}
 
 	/* (non-Javadoc)
@@ -92,7 +174,8 @@ public class HaChannelImpl implements HaChannel {
 	 */
 	@Override
 	public String basicConsume(String queue, boolean autoAck, HaConsumer callback) throws IOException {
-		return channelDelegate.basicConsume(queue, autoAck, new HaProxyConsumer(this.internalChannelId, callback));
+		ChannelSettlements settlements = this.settlements;
+		return settlements.getChannel().basicConsume(queue, autoAck, proxyConsumer(settlements, autoAck, callback));
 	}
 
 	/* (non-Javadoc)
@@ -102,8 +185,9 @@ public class HaChannelImpl implements HaChannel {
 	public String basicConsume(String queue, boolean autoAck,
 			String consumerTag, HaConsumer callback) throws IOException {
 		
-		return channelDelegate.basicConsume(queue, autoAck, consumerTag, 
-				new HaProxyConsumer(this.internalChannelId, callback)
+		ChannelSettlements settlements = this.settlements;
+		return settlements.getChannel().basicConsume(queue, autoAck, consumerTag, 
+				proxyConsumer(settlements, autoAck, callback)
 				);
 	}
 
@@ -116,12 +200,317 @@ public class HaChannelImpl implements HaChannel {
 			Map<String, Object> arguments, HaConsumer callback)
 			throws IOException {
 		
-		return channelDelegate.basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments, 
-				new HaProxyConsumer(this.internalChannelId, callback)
+		ChannelSettlements settlements = this.settlements;
+		return settlements.getChannel().basicConsume(queue, autoAck, consumerTag, noLocal, exclusive, arguments, 
+				proxyConsumer(settlements, autoAck, callback)
 				);
 		
 	}
 	
+	/**
+	 * Deliveries to a consumer without autoAck are registered to be settled
+	 */
+	private HaProxyConsumer proxyConsumer(ChannelSettlements settlements, boolean autoAck, HaConsumer callback) {
+		return new HaProxyConsumer(settlements.getInternalChannelId(), callback, codecStage, autoAck ? null : settlements);
+	}
+	
+	@Override
+	public void basicPublish(String exchange, String routingKey, BasicProperties props, byte[] body) throws IOException {
+		publish(channelDelegate, new OutboundMessage(exchange, routingKey, props, body));
+	}
+	
+	@Override
+	public void basicPublish(String exchange, String routingKey, boolean mandatory, BasicProperties props, byte[] body) throws IOException {
+		publish(channelDelegate, new OutboundMessage(exchange, routingKey, mandatory, props, body));
+	}
+	
+	@Override
+	public void basicPublish(String exchange, String routingKey, boolean mandatory, boolean immediate, BasicProperties props, byte[] body) throws IOException {
+		CodecStage codec = this.codecStage;
+		if(codec != null) {
+			OutboundMessage encoded = codec.encode(new OutboundMessage(exchange, routingKey, mandatory, props, body));
+			props = encoded.getProperties();
+			body = encoded.getBody();
+		}
+		channelDelegate.basicPublish(exchange, routingKey, mandatory, immediate, props, body);
+	}
+	
+	private void publish(Channel delegate, OutboundMessage message) throws IOException {
+		CodecStage codec = this.codecStage;
+		if(codec != null) {
+			message = codec.encode(message);
+		}
+		delegate.basicPublish(message.getExchange(), message.getRoutingKey(), message.isMandatory(), message.getProperties(), message.getBody());
+	}
+	
+	@Override
+	public GetResponse basicGet(String queue, boolean autoAck) throws IOException {
+		ChannelSettlements settlements = this.settlements;
+		GetResponse response = settlements.getChannel().basicGet(queue, autoAck);
+		if(response != null && !autoAck) {
+			settlements.delivered(response.getEnvelope().getDeliveryTag());
+		}
+		CodecStage codec = this.codecStage;
+		if(response == null || codec == null || !codec.isEncoded(response.getProps())) {
+			return response;
+		}
+		byte[] decoded = codec.decodeDelivered(response.getEnvelope().getDeliveryTag(), response.getBody());
+		if(decoded == null) {
+			return response;
+		}
+		return new GetResponse(response.getEnvelope(), codec.decodedProperties(response.getProps()), decoded, response.getMessageCount());
+	}
+	
+	@Override
+	public List<HaDelivery> basicGetBatch(String queue, int maxMessages, long timeout) throws IOException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		final ChannelSettlements settlements = this.settlements;
+		final Channel delegate = settlements.getChannel();
+		int ready = delegate.queueDeclarePassive(queue).getMessageCount();
+		try {
+			while(ready == 0 && deadline - System.nanoTime() > 0) {
+				TimeUnit.NANOSECONDS.sleep(Math.min(GET_BATCH_POLL_INTERVAL, deadline - System.nanoTime()));
+				ready = delegate.queueDeclarePassive(queue).getMessageCount();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final int wanted = Math.min(ready, maxMessages);
+		final List<HaDelivery> deliveries = new ArrayList<HaDelivery>(wanted);
+		if(wanted <= 0) {
+			return deliveries;
+		}
+		
+		final long channelId = settlements.getInternalChannelId();
+		final CodecStage codec = this.codecStage;
+		final CountDownLatch filled = new CountDownLatch(1);
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		final AtomicReference<ShutdownSignalException> shutdown = new AtomicReference<ShutdownSignalException>();
+		final AtomicBoolean returned = new AtomicBoolean(false);
+		DefaultConsumer collector = new DefaultConsumer(delegate) {
+			@Override
+			public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+				settlements.delivered(envelope.getDeliveryTag());
+				synchronized(deliveries) {
+					if(returned.get() || deliveries.size() >= wanted) {
+						//raced with the cancel, or came after the call returned
+						settlements.settle(envelope.getDeliveryTag(), false, Outcome.REQUEUE);
+						return;
+					}
+					if(codec != null && codec.isEncoded(properties)) {
+						byte[] decoded = codec.decodeDelivered(envelope.getDeliveryTag(), body);
+						if(decoded != null) {
+							body = decoded;
+							properties = codec.decodedProperties(properties);
+						}
+					}
+					deliveries.add(new HaDelivery(new HaEnvelope(channelId, envelope), properties, body));
+					if(deliveries.size() == wanted) {
+						filled.countDown();
+					}
+				}
+			}
+			
+			@Override
+			public void handleCancelOk(String consumerTag) {
+				cancelled.countDown();
+			}
+			
+			@Override
+			public void handleCancel(String consumerTag) {
+				filled.countDown();
+				cancelled.countDown();
+			}
+			
+			@Override
+			public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+				shutdown.set(sig);
+				filled.countDown();
+				cancelled.countDown();
+			}
+		};
+		
+		delegate.basicQos(wanted);
+		String consumerTag = delegate.basicConsume(queue, false, collector);
+		try {
+			try {
+				filled.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			//the channel died, fail now so the call is retried on the recovered channel
+			if(shutdown.get() != null) {
+				throw new IOException("Channel shut down while collecting deliveries", shutdown.get());
+			}
+			//a consumer cancelled by the broker, because the queue was deleted, is already gone
+			if(cancelled.getCount() > 0) {
+				delegate.basicCancel(consumerTag);
+				try {
+					//deliveries that raced with the cancel are dispatched before cancel-ok
+					cancelled.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		} finally {
+			synchronized(deliveries) {
+				//deliveries arriving from now on are rejected by the collector
+				returned.set(true);
+			}
+		}
+		if(shutdown.get() != null) {
+			throw new IOException("Channel shut down while collecting deliveries", shutdown.get());
+		}
+		synchronized(deliveries) {
+			return new ArrayList<HaDelivery>(deliveries);
+		}
+	}
+	
+	@Override
+	public AMQP.Tx.SelectOk txSelect() throws IOException {
+		if(confirmSelected) {
+			throw new IOException("Channel "+internalChannelId+" is in confirm mode, it cannot be made transactional");
+		}
+		AMQP.Tx.SelectOk ok = channelDelegate.txSelect();
+		txSelected = true;
+		return ok;
+	}
+	
+	@Override
+	public AMQP.Confirm.SelectOk confirmSelect() throws IOException {
+		if(txSelected) {
+			throw new IOException("Channel "+internalChannelId+" is transactional, it cannot be put in confirm mode");
+		}
+		AMQP.Confirm.SelectOk ok = channelDelegate.confirmSelect();
+		confirmSelected = true;
+		return ok;
+	}
+	
+	@Override
+	public void txPublishBatch(List<OutboundMessage> messages) throws IOException {
+		Channel delegate = this.channelDelegate;
+		if(!txSelected) {
+			//selected through the channel proxy, so it is replayed on a recovered channel
+			throw new IOException("Channel "+internalChannelId+" is not transactional, call txSelect before txPublishBatch");
+		}
+		for(OutboundMessage message : messages) {
+			publish(delegate, message);
+		}
+		delegate.txCommit();
+	}
+	
+	/**
+	 * Removes the messages from the list as they are confirmed, so a retry of this call after a 
+	 * reconnect only publishes those that were not. The channel proxy passes a copy of the 
+	 * application's list.
+	 */
+	@Override
+	public void publishBatch(List<OutboundMessage> messages) throws IOException {
+		Channel delegate = this.channelDelegate;
+		if(!confirmSelected) {
+			confirmSelect();
+		}
+		
+		for(int attempt = 1; !messages.isEmpty(); attempt++) {
+			if(attempt > MAX_BATCH_PUBLISH_ATTEMPTS) {
+				throw new IOException(messages.size()+" messages of the batch were nacked "+MAX_BATCH_PUBLISH_ATTEMPTS+" times");
+			}
+			
+			BatchConfirmListener confirms = new BatchConfirmListener();
+			delegate.addConfirmListener(confirms);
+			try {
+				for(OutboundMessage message : messages) {
+					confirms.published(delegate.getNextPublishSeqNo());
+					publish(delegate, message);
+				}
+				delegate.waitForConfirms();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for publisher confirms");
+			} finally {
+				delegate.removeConfirmListener(confirms);
+				confirms.removeConfirmed(messages);
+			}
+		}
+	}
+	
+	@Override
+	public void abandonDelivery(DeliveryTag deliveryTag, boolean requeue) throws IOException {
+		//ack listeners are told by the late ack, nack or reject, the application may still be reading the delivery
+		this.assertValidOperationForChannel(deliveryTag, "basicNack");
+		settle(deliveryTag, false, Outcome.of(false, requeue));
+	}
+	
+	@Override
+	public void addAckListener(HaAckListener listener) {
+		ackListeners.add(listener);
+	}
+	
+	@Override
+	public boolean removeAckListener(HaAckListener listener) {
+		return ackListeners.remove(listener);
+	}
+	
+	@Override
+	public void addRecoveryListener(HaChannelRecoveryListener listener) {
+		recoveryListeners.add(listener);
+	}
+	
+	@Override
+	public boolean removeRecoveryListener(HaChannelRecoveryListener listener) {
+		return recoveryListeners.remove(listener);
+	}
+	
+	protected void notifyRecoveryListeners() throws IOException {
+		for(HaChannelRecoveryListener listener : recoveryListeners) {
+			listener.channelRecovered(this);
+		}
+	}
+	
+	/**
+	 * Tracks which messages of one batch publish the broker acked, by the publish sequence number 
+	 * of their position in the batch
+	 */
+	private static class BatchConfirmListener implements ConfirmListener {
+		/**
+		 * sequence number of each published position of the batch, in order
+		 */
+		private final List<Long> published = new ArrayList<Long>();
+		private final ConcurrentSkipListSet<Long> unconfirmed = new ConcurrentSkipListSet<Long>();
+		private final Set<Long> acked = new HashSet<Long>();
+		
+		synchronized void published(long seqNo) {
+			published.add(seqNo);
+			unconfirmed.add(seqNo);
+		}
+		
+		@Override
+		public synchronized void handleAck(long deliveryTag, boolean multiple) {
+			Set<Long> confirmed = multiple ? unconfirmed.headSet(deliveryTag, true) : unconfirmed.subSet(deliveryTag, true, deliveryTag, true);
+			acked.addAll(confirmed);
+			confirmed.clear();
+		}
+		
+		@Override
+		public synchronized void handleNack(long deliveryTag, boolean multiple) {
+			Set<Long> nacked = multiple ? unconfirmed.headSet(deliveryTag, true) : unconfirmed.subSet(deliveryTag, true, deliveryTag, true);
+			nacked.clear();
+		}
+		
+		/**
+		 * Removes the acked positions. Positions that were never published stay.
+		 */
+		synchronized void removeConfirmed(List<OutboundMessage> messages) {
+			Iterator<OutboundMessage> it = messages.iterator();
+			for(Long seqNo : published) {
+				it.next();
+				if(acked.contains(seqNo)) {
+					it.remove();
+				}
+			}
+		}
+	}
+	
 	private void assertValidOperationForChannel(DeliveryTag deliveryTag, String operation) throws ChannelMismatchException {
 		if(deliveryTag.getInternalChannelId() != internalChannelId) {
 			throw new ChannelMismatchException(deliveryTag.getInternalChannelId(), internalChannelId, operation);
@@ -3,9 +3,11 @@ package com.jasonclawson.rabbitmq.ha;
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -14,6 +16,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.ShutdownSignalException;
@@ -32,6 +35,10 @@ public class HaChannelProxy implements InvocationHandler {
 	
 	private static final String BASIC_CONSUME_METHOD_NAME = "basicConsume";
     private static final String CLOSE_METHOD_NAME = "close";
+    private static final String PUBLISH_METHOD_NAME = "basicPublish";
+    private static final String GET_BATCH_METHOD_NAME = "basicGetBatch";
+    private static final String PUBLISH_BATCH_METHOD_NAME = "publishBatch";
+    private static final String QOS_METHOD_NAME = "basicQos";
 	
 	/**
      * When these methods are called, it will be recorded. If we have to reconnect, the calls will be replayed on the new channel
@@ -47,13 +54,25 @@ public class HaChannelProxy implements InvocationHandler {
     private static final Set<String> RETRYABLE_METHOD_NAMES = new HashSet<String>(Arrays.asList(
     		"basicPublish", "exchangeDeclare", "exchangeDelete", "exchangeBind", "exchangeUnbind",
     		"queueDeclare", "queueDeclarePassive", "queueDelete", "queueBind", "queueUnbind",
-    		"queuePurge", "basicGet", "basicRecover", "getNextPublishSeqNo", "asyncRpc", "rpc"));
+    		"queuePurge", "basicGet", "basicGetBatch", "txPublishBatch", "publishBatch", "basicRecover",
+    		"getNextPublishSeqNo", "asyncRpc", "rpc"));
     
     private final HaConnection haConnection;
     private final HaChannelImpl channel;
     
     private ConcurrentHashMap<HaConsumer, HaConsumerProxy> consumerProxies = new ConcurrentHashMap<HaConsumer, HaConsumerProxy>();
     private Map<Method, Object[]> callsToReplay = new LinkedHashMap<Method, Object[]>();
+    
+    /**
+     * Set when the connection was recovered but this channel was not. It is reopened on first use.
+     */
+    private volatile boolean stale = false;
+    
+    /**
+     * The thread that is reopening this channel. Calls it makes while replaying must not start 
+     * another recovery.
+     */
+    private volatile Thread recoveringThread;
 
     public long getInternalChannelId() {
     	return channel.getInternalChannelId();
@@ -62,9 +81,73 @@ public class HaChannelProxy implements InvocationHandler {
     protected synchronized void reconnect(HaConnection connection) throws IOException {
     	log.info("Reconnecting channel {}", this.channel.getInternalChannelId());
     	
-    	Channel newDelegateChannel = connection.createDelegateChannel(channel.getChannelNumber());
-    	this.channel.refreshChannelDelegate(newDelegateChannel);
-    	reconsume();
+    	Thread previousRecoveringThread = recoveringThread;
+    	recoveringThread = Thread.currentThread();
+    	try {
+	    	Channel newDelegateChannel = connection.createDelegateChannel(channel.getChannelNumber());
+	    	this.channel.refreshChannelDelegate(newDelegateChannel);
+	    	reconsume();
+	    	stale = false;
+    	} finally {
+    		recoveringThread = previousRecoveringThread;
+    	}
+    }
+    
+    /**
+     * Reopens only this channel after a channel error, the connection and its other channels are 
+     * unaffected. Falls back to reconnecting the whole connection if the connection went away too.
+     */
+    protected void recoverChannel() throws IOException, InterruptedException {
+    	try {
+    		reopenIfClosed();
+    	} catch (IOException e) {
+    		if(haConnection.isOpen() && !HaUtils.shouldReconnect(e)) {
+    			throw e;
+    		}
+    		haConnection.reconnect();
+    	} catch (ShutdownSignalException e) {
+    		if(haConnection.isOpen() && !HaUtils.shouldReconnect(e)) {
+    			throw e;
+    		}
+    		haConnection.reconnect();
+    	}
+    }
+    
+    private synchronized void reopenIfClosed() throws IOException {
+    	//another thread may have recovered the channel already
+    	if(!channel.isOpen()) {
+    		log.info("Recovering channel {} after a channel error", channel.getInternalChannelId());
+    		reconnect(haConnection);
+    	}
+    }
+    
+    /**
+     * Stops recovering the given consumer and tells it that it was cancelled
+     */
+    protected void abandonConsumer(HaConsumerProxy consumer) {
+    	if(consumerProxies.values().remove(consumer)) {
+    		consumer.cancelled();
+    	}
+    }
+    
+    protected boolean hasConsumers() {
+    	return !consumerProxies.isEmpty();
+    }
+    
+    protected void markStale() {
+    	log.debug("Channel {} will be recovered on first use", this.channel.getInternalChannelId());
+    	stale = true;
+    }
+    
+    private void recoverIfStale() throws IOException {
+    	//checked before locking, this runs on every call and the channel is rarely stale
+    	if(stale) {
+    		synchronized(this) {
+    			if(stale) {
+    				reconnect(haConnection);
+    			}
+    		}
+    	}
     }
     
     private void reconsume() throws IOException {
@@ -88,16 +171,76 @@ public class HaChannelProxy implements InvocationHandler {
 				throw new IOException("Error replaying call", e);
 			}
 		}
+		
+		channel.notifyRecoveryListeners();
 
 		log.debug("Re-binding {} consumers on channel", this.consumerProxies.size());
 		for(HaConsumerProxy consumer : this.consumerProxies.values()) {
-			consumer.reconsume();
+			try {
+				consumer.reconsume();
+			} catch (IOException e) {
+				if(!abandonConsumerAfterChannelError(consumer, e)) {
+					throw e;
+				}
+				return;
+			} catch (ShutdownSignalException e) {
+				if(!abandonConsumerAfterChannelError(consumer, e)) {
+					throw e;
+				}
+				return;
+			}
 		}
     }
     
+    /**
+     * Sets the prefetch back to what the application asked for, after basicGetBatch changed it
+     */
+    private void restoreQos() {
+    	if(!channel.isOpen()) {
+    		//a reopened channel gets its basicQos replayed
+    		return;
+    	}
+    	try {
+    		boolean restored = false;
+    		for (Entry<Method, Object[]> call : callsToReplay.entrySet()) {
+    			if(call.getKey().getName().equals(QOS_METHOD_NAME)) {
+    				HaUtils.invokeAnUnwrapException(call.getKey(), call.getValue(), channel);
+    				restored = true;
+    			}
+    		}
+    		if(!restored) {
+    			channel.basicQos(0);
+    		}
+    	} catch (Error e) {
+    		throw e;
+    	} catch (Throwable e) {
+    		log.warn("Unable to restore basicQos on channel {}: {}", channel.getInternalChannelId(), e.toString());
+    	}
+    }
+    
+    /**
+     * A consumer that cannot be re-subscribed because of a channel error, for example because its 
+     * queue was deleted, is dropped so it does not keep the other consumers of this channel from 
+     * recovering. The error closed the channel, so the channel is reopened and recovery starts over.
+     */
+    private boolean abandonConsumerAfterChannelError(HaConsumerProxy consumer, Exception e) throws IOException {
+    	if(!HaUtils.isChannelError(e)) {
+    		return false;
+    	}
+    	log.error("Unable to re-subscribe consumer {}, it will be cancelled", consumer.getConsumerTag(), e);
+    	abandonConsumer(consumer);
+    	reconnect(haConnection);
+    	return true;
+    }
+    
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {		
 		if (method.getName().equals(CLOSE_METHOD_NAME)) {
+			if(stale) {
+				//the delegate went away with the old connection, there is nothing to close
+				haConnection.removeClosedChannel(this);
+				return null;
+			}
 			try {
 				channel.close();
 			} finally {
@@ -108,18 +251,45 @@ public class HaChannelProxy implements InvocationHandler {
 		//if consume method is being called, wrap the incoming consumer with a proxy
 		adjustArgsIfBasicConsume(method, arguments);
 		
+		if(method.getName().equals(PUBLISH_BATCH_METHOD_NAME)) {
+			//confirmed messages are removed from this copy, a retry publishes the rest
+			arguments[0] = new ArrayList<Object>((List<?>) arguments[0]);
+		}
+		
+		//while the connection is down, or older spooled messages are pending, publishes go to the spool
+		boolean publish = method.getName().equals(PUBLISH_METHOD_NAME);
+		if(publish && haConnection.spoolIfDisconnected(arguments)) {
+			return null;
+		}
+		
+		//calls replayed while recovering must not be held up by the circuit breaker
+		boolean trial = false;
+		if(recoveringThread != Thread.currentThread()) {
+			trial = haConnection.checkCircuit();
+		}
+		long deadline = haConnection.recoveryDeadline();
+		
 		int tries = 0;
 		while(true) {		
 			tries++;
 			try {
 				Object result = null;
+				recoverIfStale();
 				
 				if(1 == tries || RETRYABLE_METHOD_NAMES.contains(method.getName())) {
 					if(!this.channel.isOpen()) {
 						log.error("Channel {} is closed! channel: {} connection: {} ", channel.getChannelNumber(), System.identityHashCode(channel), System.identityHashCode(channel.getConnection()));
 					}
 					log.debug("invoking {} on internal channel {}", method.getName(), this.getInternalChannelId());
-					result = HaUtils.invokeAnUnwrapException(method, arguments, channel);
+					long start = System.nanoTime();
+					try {
+						result = HaUtils.invokeAnUnwrapException(method, arguments, channel);
+					} finally {
+						if(method.getName().equals(GET_BATCH_METHOD_NAME)) {
+							restoreQos();
+						}
+					}
+					haConnection.recordLatency(method.getName(), System.nanoTime() - start);
 				}
 				
 				//this comes after because if we are waiting on the latch
@@ -143,9 +313,25 @@ public class HaChannelProxy implements InvocationHandler {
 				return result;
 			} catch (Exception e) {
 				log.warn("invoke hit an exception {}", e.toString());
-				if(HaUtils.shouldReconnect(e)) {
+				if(recoveringThread == Thread.currentThread()) {
+					//we are replaying calls on a reopened channel, the recovery decides what to do
+					throw e;
+				}
+				
+				if(HaUtils.isChannelError(e) && haConnection.isOpen()) {
+					log.info("I will recover channel {}", this.getInternalChannelId());
+					recoverChannel();
+					if(!(e instanceof AlreadyClosedException)) {
+						//this call caused the channel error, calling it again would fail the same way
+						throw e;
+					}
+				} else if(HaUtils.shouldReconnect(e)) {
+					if(publish && haConnection.spool(arguments)) {
+						log.info("Spooled publish on channel {} until the connection is recovered", this.getInternalChannelId());
+						return null;
+					}
 					log.info("I will try to reconnect");
-					haConnection.reconnect();
+					haConnection.awaitRecovery(deadline, trial, method.getName());
 				} else {
 					log.info("I will throw the exception {}", e.getMessage());
 					throw e;
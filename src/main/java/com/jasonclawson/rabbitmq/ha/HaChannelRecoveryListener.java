@@ -0,0 +1,17 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+
+/**
+ * Told when a {@link HaChannel} has been reopened during recovery, after the calls like 
+ * basicQos have been replayed and before its consumers are subscribed again. This is the place 
+ * to re-declare topology the consumers depend on, like exclusive or auto-delete queues that 
+ * went away with the old connection.
+ */
+public interface HaChannelRecoveryListener {
+	/**
+	 * Called on the recovering thread. An exception fails the recovery of the channel.
+	 * @param channel the reopened channel. Calls made on it are not replayed on later recoveries.
+	 */
+	void channelRecovered(HaChannel channel) throws IOException;
+}
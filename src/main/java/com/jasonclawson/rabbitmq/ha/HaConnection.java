@@ -5,16 +5,25 @@ import java.lang.reflect.Proxy;
 import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import lombok.AccessLevel;
 import lombok.Delegate;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQConnection;
 
 @Slf4j
 public class HaConnection {
@@ -22,16 +31,66 @@ public class HaConnection {
 	public static final int CONNECTING   = 1;
 	public static final int CONNECTED    = 2;
 	
+	/**
+	 * How long we wait for the broker to acknowledge the close of a connection we have declared dead
+	 */
+	private static final int DEAD_CONNECTION_CLOSE_TIMEOUT = 1000;
+	
+	/**
+	 * Deadline of a caller that is willing to wait for recovery for as long as it takes
+	 */
+	protected static final long NO_DEADLINE = Long.MAX_VALUE;
+	
+	/**
+	 * How often, in nanoseconds, a thread waiting on a reconnect checks whether the circuit breaker opened
+	 */
+	private static final long BREAKER_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+	
 	private AtomicInteger reconnectionState = new AtomicInteger(CONNECTED);
 	
 	@Delegate(excludes=PrunedConnection.class)
-	private Connection delegateConnection;
+	private volatile Connection delegateConnection;
 	
 	private final Set<HaChannelProxy> haChannels;
 	private final ReentrantLock reconnectLock;
 	private final ReconnectionFactory reconnectionFactory;
 	private final long reconnectDelay;
 	private final long maxReconnectTries;
+	private ScheduledExecutorService scheduler;
+	private LivenessMonitor livenessMonitor;
+	private volatile LatencyMonitor latencyMonitor;
+	
+	/**
+	 * Pre-established idle connection, preferably to another node, that is swapped in on failure
+	 */
+	private Connection standbyConnection;
+	private volatile boolean standbyEnabled;
+	private ExecutorService standbyExecutor;
+	
+	/**
+	 * When set, channels without consumers are not reopened during reconnect but on their first use
+	 */
+	@Setter(AccessLevel.PROTECTED)
+	private volatile boolean lazyChannelRecovery = false;
+	
+	/**
+	 * Longest time, in milliseconds, a call waits for the connection to be recovered. 0 waits 
+	 * until recovery succeeds or gives up. A deadline set with {@link HaDeadline} takes precedence.
+	 */
+	@Setter(AccessLevel.PROTECTED)
+	private volatile long maxRecoveryWait = 0;
+	private volatile CircuitBreaker circuitBreaker;
+	
+	/**
+	 * Journal for messages published while the connection is down
+	 */
+	private volatile PublishSpool publishSpool;
+	private final AtomicBoolean spoolDraining = new AtomicBoolean(false);
+	
+	/**
+	 * Body codec given to every channel, null for none
+	 */
+	private volatile CodecStage codecStage;
 	private final ShutdownListener shutdownListener = new ShutdownListener() {
 		@Override
 		public void shutdownCompleted(ShutdownSignalException cause) {
@@ -47,6 +106,22 @@ public class HaConnection {
 			}
 		}
 	};
+	private final ShutdownListener standbyShutdownListener = new ShutdownListener() {
+		@Override
+		public void shutdownCompleted(ShutdownSignalException cause) {
+			log.warn("Standby connection lost {}", cause.toString());
+			synchronized(HaConnection.this) {
+				standbyConnection = null;
+			}
+			replenishStandby(reconnectDelay);
+		}
+	};
+	private final Runnable openStandby = new Runnable() {
+		@Override
+		public void run() {
+			openStandby();
+		}
+	};
 	
 	public HaConnection(ReconnectionFactory reconnectionFactory, final Connection target, long reconnectDelay, long maxReconnectTries) {
 		this.delegateConnection = target;
@@ -70,12 +145,197 @@ public class HaConnection {
     	return proxyChannel(delegate);
     }
     
+    /**
+     * Starts a group of size consumers on queue, each on its own channel
+     * @param prefetch basicQos applied to each channel, 0 for none
+     */
+    public HaConsumerGroup createConsumerGroup(String queue, boolean autoAck, int prefetch, int size, HaConsumerFactory consumerFactory) throws IOException {
+    	HaConsumerGroup group = new HaConsumerGroup(this, queue, autoAck, prefetch, consumerFactory);
+    	try {
+    		group.resize(size);
+    	} catch (IOException e) {
+    		group.shutdown();
+    		throw e;
+    	}
+    	return group;
+    }
+    
     protected Channel createDelegateChannel(int channelNumber) throws IOException {
-    	return delegateConnection.createChannel(channelNumber);
+    	Channel channel = delegateConnection.createChannel(channelNumber);
+    	if(channel == null) {
+    		//when a single channel is reopened its old number may not be released yet
+    		channel = delegateConnection.createChannel();
+    	}
+    	return channel;
+    }
+    
+    protected Connection getDelegateConnection() {
+    	return delegateConnection;
+    }
+    
+    public int getReconnectionState() {
+    	return reconnectionState.get();
+    }
+    
+    /**
+     * Scheduler shared by the background tasks of this connection. It is created on first use
+     * and shut down when the connection is closed by the application.
+     */
+    protected synchronized ScheduledExecutorService getScheduler() {
+    	if(scheduler == null) {
+    		scheduler = Executors.newSingleThreadScheduledExecutor(HaUtils.daemonThreadFactory("ha-connection-scheduler"));
+    	}
+    	return scheduler;
+    }
+    
+    protected synchronized void startLivenessMonitor(long probeInterval, long timeout) {
+    	if(livenessMonitor == null) {
+    		livenessMonitor = new LivenessMonitor(this, probeInterval, timeout);
+    		livenessMonitor.start(getScheduler());
+    	}
+    }
+    
+    protected synchronized void startLatencyMonitor(long threshold, long slowPeriod, long cooldown) {
+    	if(latencyMonitor == null) {
+    		latencyMonitor = new LatencyMonitor(this, threshold, slowPeriod, cooldown);
+    		latencyMonitor.start(getScheduler());
+    	}
+    }
+    
+    protected synchronized void enableStandby() {
+    	if(!standbyEnabled) {
+    		standbyEnabled = true;
+    		standbyExecutor = Executors.newSingleThreadExecutor(HaUtils.daemonThreadFactory("ha-connection-standby"));
+    		replenishStandby(0);
+    	}
+    }
+    
+    private void replenishStandby(long delay) {
+    	if(!standbyEnabled) {
+    		return;
+    	}
+    	try {
+	    	getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					standbyExecutor.execute(openStandby);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+    	} catch (RuntimeException e) {
+    		log.debug("Not replenishing standby connection {}", e.toString());
+    	}
+    }
+    
+    /**
+     * Opens the standby connection on the standby thread, so a slow handshake never holds up
+     * the scheduler or a reconnect in progress
+     */
+    private void openStandby() {
+    	synchronized(this) {
+    		if(!standbyEnabled || standbyConnection != null) {
+    			return;
+    		}
+    	}
+    	
+    	Connection current = this.delegateConnection;
+    	Connection standby;
+    	try {
+    		standby = reconnectionFactory.newConnection(current.getAddress(), current.getPort());
+    	} catch (Exception e) {
+    		log.warn("Unable to open standby connection {}", e.toString());
+    		replenishStandby(reconnectDelay);
+    		return;
+    	}
+    	
+    	log.info("Opened standby connection to {}:{}", standby.getAddress(), standby.getPort());
+    	standby.addShutdownListener(standbyShutdownListener);
+    	synchronized(this) {
+    		if(standbyEnabled && standbyConnection == null) {
+    			standbyConnection = standby;
+    			return;
+    		}
+    	}
+    	standby.removeShutdownListener(standbyShutdownListener);
+    	standby.abort();
+    }
+    
+    /**
+     * @return the open standby connection, which is no longer the standby, or null if there is none 
+     */
+    private synchronized Connection takeStandby() {
+    	Connection standby = standbyConnection;
+    	standbyConnection = null;
+    	if(standby != null) {
+    		standby.removeShutdownListener(standbyShutdownListener);
+    		if(!standby.isOpen()) {
+    			return null;
+    		}
+    	}
+    	return standby;
+    }
+    
+    protected void enableCircuitBreaker(long openAfter, long trialInterval) {
+    	circuitBreaker = new CircuitBreaker(openAfter, trialInterval);
+    }
+    
+    /**
+     * @return the state of the circuit breaker, CLOSED if there is none
+     */
+    public CircuitBreaker.State getCircuitState() {
+    	CircuitBreaker breaker = circuitBreaker;
+    	return breaker == null ? CircuitBreaker.State.CLOSED : breaker.getState();
+    }
+    
+    /**
+     * Fails fast when the circuit breaker is open
+     * @return true if the caller was let through as the trial caller of an open breaker
+     */
+    protected boolean checkCircuit() throws CircuitOpenException {
+    	CircuitBreaker breaker = circuitBreaker;
+    	return breaker != null && breaker.acquirePermission();
+    }
+    
+    /**
+     * Called by a channel call that found the connection broken. Reconnects, or waits for another
+     * thread to reconnect, within the deadline of the call.
+     * 
+     * @param trial true if the caller is the trial caller of an open circuit breaker, which keeps 
+     * waiting while the breaker is open
+     * @throws CircuitOpenException if the circuit breaker opened while waiting
+     * @throws RecoveryTimeoutException if the deadline passed while waiting
+     */
+    protected void awaitRecovery(long deadline, boolean trial, String operation) throws IOException, InterruptedException {
+    	CircuitBreaker breaker = trial ? null : circuitBreaker;
+    	if(!reconnect(deadline, breaker)) {
+    		if(breaker != null && breaker.isOpen()) {
+    			throw breaker.newOpenException(System.nanoTime());
+    		}
+    		throw new RecoveryTimeoutException(operation);
+    	}
+    }
+    
+    /**
+     * @return the {@link System#nanoTime()} by which the calling thread must stop waiting for recovery
+     */
+    protected long recoveryDeadline() {
+    	Long threadDeadline = HaDeadline.get();
+    	if(threadDeadline != null) {
+    		return threadDeadline;
+    	}
+    	long maxWait = maxRecoveryWait;
+    	return maxWait > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait) : NO_DEADLINE;
+    }
+    
+    protected void recordLatency(String methodName, long nanos) {
+    	LatencyMonitor monitor = latencyMonitor;
+    	if(monitor != null && LatencyMonitor.isTracked(methodName)) {
+    		monitor.record(nanos);
+    	}
     }
     
     private HaChannel proxyChannel(Channel delegate) {
     	HaChannelImpl channel = new HaChannelImpl(delegate);
+    	channel.setCodecStage(codecStage);
     	
     	ClassLoader classLoader = HaChannel.class.getClassLoader();
         Class<?>[] interfaces = { HaChannel.class };
@@ -90,11 +350,155 @@ public class HaConnection {
 		haChannels.remove(haChannelProxy);
 	}
 
+    /**
+     * Moves this connection to another broker node. The current node is tried last when reconnecting.
+     */
+	protected void failover(String reason) {
+		Connection current = this.delegateConnection;
+		reconnectionFactory.avoid(current.getAddress(), current.getPort());
+		forceReconnect(reason);
+	}
+
+	/**
+	 * Declares the current delegate connection dead and recovers on a background thread. The 
+	 * delegate is aborted with a shutdown signal that is not application initiated, so threads 
+	 * blocked on it wake up and take part in the normal reconnect process.
+	 */
+	protected void forceReconnect(String reason) {
+		Connection deadConnection = this.delegateConnection;
+		log.warn("Forcing reconnect of connection {}: {}", deadConnection, reason);
+		deadConnection.removeShutdownListener(shutdownListener);
+		reconnectionState.compareAndSet(CONNECTED, DISCONNECTED);
+		try {
+			if(deadConnection instanceof AMQConnection) {
+				((AMQConnection) deadConnection).close(AMQP.CONNECTION_FORCED, reason, false, new IOException(reason), DEAD_CONNECTION_CLOSE_TIMEOUT, true);
+			} else {
+				deadConnection.abort(AMQP.CONNECTION_FORCED, reason, DEAD_CONNECTION_CLOSE_TIMEOUT);
+			}
+		} catch (Exception e) {
+			log.debug("Error while aborting dead connection {}", e.toString());
+		}
+		reconnectAsync();
+	}
+	
+	/**
+	 * Encodes published bodies of at least threshold bytes with the codec, and decodes delivered 
+	 * bodies with its content-encoding, on channels created afterwards
+	 */
+	protected void setBodyCodec(BodyCodec codec, int threshold) {
+		codecStage = codec == null ? null : new CodecStage(codec, threshold);
+	}
+	
+	protected synchronized void enableSpool(PublishSpool spool) {
+		if(publishSpool == null) {
+			publishSpool = spool;
+			drainSpool();
+		}
+	}
+	
+	/**
+	 * Appends a basicPublish call to the spool instead of sending it if the connection is down, or
+	 * if older spooled messages still have to be published first so ordering is kept.
+	 * @return true if the message was spooled
+	 */
+	protected boolean spoolIfDisconnected(Object[] publishArgs) throws IOException {
+		PublishSpool spool = publishSpool;
+		if(spool == null || (reconnectionState.get() == CONNECTED && spool.isEmpty())) {
+			return false;
+		}
+		return spool(publishArgs);
+	}
+	
+	/**
+	 * Appends a basicPublish call to the spool. Publishes with a custom consumer, the 6 argument
+	 * variant, are not spooled. The message is encoded before it is spooled, the drain publishes 
+	 * it as is.
+	 * @return true if the message was spooled
+	 */
+	protected boolean spool(Object[] publishArgs) throws IOException {
+		PublishSpool spool = publishSpool;
+		OutboundMessage message = OutboundMessage.fromPublishArguments(publishArgs);
+		if(spool == null || message == null) {
+			return false;
+		}
+		CodecStage codec = codecStage;
+		if(codec != null) {
+			message = codec.encode(message);
+		}
+		spool.append(message);
+		drainSpool();
+		return true;
+	}
+	
+	private void drainSpool() {
+		PublishSpool spool = publishSpool;
+		if(spool == null || reconnectionState.get() != CONNECTED || spool.isEmpty() 
+				|| !spoolDraining.compareAndSet(false, true)) {
+			return;
+		}
+		spool.drainAsync(delegateConnection, new PublishSpool.DrainListener() {
+			@Override
+			public void drained(Exception error) {
+				spoolDraining.set(false);
+				if(error == null) {
+					//pick up messages appended after the drainer found the spool empty
+					drainSpool();
+				} else if(reconnectionState.get() == CONNECTED) {
+					//a lost connection drains again after reconnect, anything else is retried later
+					try {
+						getScheduler().schedule(new Runnable() {
+							@Override
+							public void run() {
+								drainSpool();
+							}
+						}, reconnectDelay, TimeUnit.MILLISECONDS);
+					} catch (RuntimeException e) {
+						log.debug("Not retrying spool drain {}", e.toString());
+					}
+				}
+			}
+		});
+	}
+	
+	protected void reconnectAsync() {
+		HaUtils.daemonThreadFactory("ha-connection-recovery").newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reconnect();
+				} catch (InterruptedException e) {
+					log.warn("Background reconnect interrupted");
+				} catch (RuntimeException e) {
+					log.error("Background reconnect failed", e);
+				}
+			}
+		}).start();
+	}
+	
 	public void reconnect() throws InterruptedException {
+		reconnect(NO_DEADLINE, null);
+	}
+	
+	/**
+	 * Reconnects, or waits for another thread to reconnect, until the deadline passes or the given
+	 * circuit breaker opens. A thread that gives up in the middle of reconnecting hands the 
+	 * reconnect over to a background thread.
+	 * 
+	 * @param deadline the {@link System#nanoTime()} to give up at, or {@link #NO_DEADLINE}
+	 * @param breaker stop waiting when this breaker opens, may be null
+	 * @return false if we gave up before the connection was recovered
+	 */
+	protected boolean reconnect(long deadline, CircuitBreaker breaker) throws InterruptedException {
 		reconnectionState.compareAndSet(CONNECTED, DISCONNECTED);
+		if(circuitBreaker != null) {
+			circuitBreaker.disconnected();
+		}
 		
 		log.info("Thread '{}' is asking to reconnect", Thread.currentThread().getName());
-		reconnectLock.lockInterruptibly();
+		if(!lockForReconnect(deadline, breaker)) {
+			log.warn("Thread '{}' stopped waiting for the reconnect", Thread.currentThread().getName());
+			return false;
+		}
 		try {
 			if(!reconnectionState.compareAndSet(DISCONNECTED, CONNECTING)) {
 				log.info("Thread {} will not reconnect because we are in connection state {} (Not the DISCONNECTED state)", reconnectionState.get());
@@ -119,11 +523,24 @@ public class HaConnection {
 						throw new InterruptedException("Connection reconnect process interrupted after "+tryNumber+" tries");
 					}
 					
-					Thread.sleep(reconnectDelay); //wait a little before attempting the reconnection
+					Connection standby = shouldGiveUp(deadline, breaker) ? null : takeStandby();
+					//wait a little before attempting the reconnection, but not past the deadline
+					if(standby == null && !sleepBeforeReconnect(deadline, breaker)) {
+						log.warn("Thread '{}' gave up reconnecting after {} tries. Reconnecting in the background.", Thread.currentThread().getName(), tryNumber);
+						reconnectionState.compareAndSet(CONNECTING, DISCONNECTED);
+						reconnectAsync();
+						return false;
+					}
 	
 					try {
-						log.debug("Attempting to connect");
-						Connection connection = reconnectionFactory.newConnection();
+						Connection connection;
+						if(standby != null) {
+							log.info("Swapping in standby connection to {}:{}", standby.getAddress(), standby.getPort());
+							connection = standby;
+						} else {
+							log.debug("Attempting to connect");
+							connection = reconnectionFactory.newConnection();
+						}
 						log.debug(connection.isOpen()?"I am connected":"I am not connected!!!");
 						try {
 							//we have this loop so we don't call reconnectChannels() without ensuring
@@ -152,8 +569,16 @@ public class HaConnection {
 	
 				if(tryNumber >= maxReconnectTries) {
 					log.error("Max reconnect tries exceeded!");
+					if(circuitBreaker != null) {
+						circuitBreaker.reconnectFailed();
+					}
 					throw new RuntimeException("Max reconnect tries, "+maxReconnectTries+", exceeded");
 				}
+				
+				if(circuitBreaker != null) {
+					circuitBreaker.connected();
+				}
+				replenishStandby(0);
 			}/* else {
 				log.warn("Connection is still open! I will not reconnect!!!");
 			}*/
@@ -166,17 +591,144 @@ public class HaConnection {
 		} finally {
 			reconnectionState.compareAndSet(CONNECTING, CONNECTED);
 			reconnectLock.unlock();
-		} 
+		}
+		drainSpool();
+		return true;
+	}
+	
+	/**
+	 * Waits for the reconnect lock in slices so a waiting thread notices the breaker opening
+	 */
+	private boolean lockForReconnect(long deadline, CircuitBreaker breaker) throws InterruptedException {
+		if(deadline == NO_DEADLINE && breaker == null) {
+			reconnectLock.lockInterruptibly();
+			return true;
+		}
+		
+		while(!shouldGiveUp(deadline, breaker)) {
+			long wait = BREAKER_CHECK_INTERVAL;
+			if(deadline != NO_DEADLINE) {
+				wait = Math.min(wait, deadline - System.nanoTime());
+			}
+			if(reconnectLock.tryLock(wait, TimeUnit.NANOSECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sleeps for the reconnect delay in slices, so the deadline and breaker are noticed. The 
+	 * connect that follows is bounded by the connection timeout of the factory, not the deadline.
+	 * 
+	 * @return false if we should give up instead of reconnecting
+	 */
+	private boolean sleepBeforeReconnect(long deadline, CircuitBreaker breaker) throws InterruptedException {
+		long wakeUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectDelay);
+		while(true) {
+			if(shouldGiveUp(deadline, breaker)) {
+				return false;
+			}
+			long remaining = wakeUp - System.nanoTime();
+			if(remaining <= 0) {
+				return true;
+			}
+			if(deadline != NO_DEADLINE) {
+				remaining = Math.min(remaining, deadline - System.nanoTime());
+			}
+			if(breaker != null) {
+				remaining = Math.min(remaining, BREAKER_CHECK_INTERVAL);
+			}
+			if(remaining > 0) {
+				TimeUnit.NANOSECONDS.sleep(remaining);
+			}
+		}
+	}
+	
+	private static boolean shouldGiveUp(long deadline, CircuitBreaker breaker) {
+		return (deadline != NO_DEADLINE && deadline - System.nanoTime() <= 0)
+				|| (breaker != null && breaker.isOpen());
 	}
 	
 	private void reconnectChannels() throws IOException {
 		log.debug("Reconnecting {} channels", haChannels.size());
 		for(HaChannelProxy channel : haChannels) {
-			channel.reconnect(this);
+			if(lazyChannelRecovery && !channel.hasConsumers()) {
+				channel.markStale();
+			} else {
+				channel.reconnect(this);
+			}
 		}
 	}
 	
 	private void applyConnectionShutdownListener() {
 		this.delegateConnection.addShutdownListener(shutdownListener);
 	}
+	
+	/**
+	 * Stops the background tasks of this connection. Called when the application closes 
+	 * or aborts the connection.
+	 */
+	private synchronized void stopBackgroundTasks() {
+		if(livenessMonitor != null) {
+			livenessMonitor.stop();
+			livenessMonitor = null;
+		}
+		latencyMonitor = null;
+		if(standbyEnabled) {
+			standbyEnabled = false;
+			standbyExecutor.shutdownNow();
+			Connection standby = takeStandby();
+			if(standby != null) {
+				standby.abort();
+			}
+		}
+		if(publishSpool != null) {
+			publishSpool.close();
+		}
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+	
+	public void close() throws IOException {
+		stopBackgroundTasks();
+		delegateConnection.close();
+	}
+	
+	public void close(int closeCode, String closeMessage) throws IOException {
+		stopBackgroundTasks();
+		delegateConnection.close(closeCode, closeMessage);
+	}
+	
+	public void close(int timeout) throws IOException {
+		stopBackgroundTasks();
+		delegateConnection.close(timeout);
+	}
+	
+	public void close(int closeCode, String closeMessage, int timeout) throws IOException {
+		stopBackgroundTasks();
+		delegateConnection.close(closeCode, closeMessage, timeout);
+	}
+	
+	public void abort() {
+		stopBackgroundTasks();
+		delegateConnection.abort();
+	}
+	
+	public void abort(int closeCode, String closeMessage) {
+		stopBackgroundTasks();
+		delegateConnection.abort(closeCode, closeMessage);
+	}
+	
+	public void abort(int timeout) {
+		stopBackgroundTasks();
+		delegateConnection.abort(timeout);
+	}
+	
+	public void abort(int closeCode, String closeMessage, int timeout) {
+		stopBackgroundTasks();
+		delegateConnection.abort(closeCode, closeMessage, timeout);
+	}
 }
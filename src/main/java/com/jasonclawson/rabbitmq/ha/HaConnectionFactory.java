@@ -1,5 +1,6 @@
 package com.jasonclawson.rabbitmq.ha;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 
@@ -23,6 +24,134 @@ public class HaConnectionFactory {
 	@Setter
 	private long maxReconnectTries = 5000;
 	
+	/**
+	 * How often, in milliseconds, the broker is actively probed. 0 disables the liveness monitor.
+	 */
+	@Getter
+	@Setter
+	private long livenessProbeInterval = 0;
+	
+	/**
+	 * How long, in milliseconds, the broker may go without answering a probe before the 
+	 * connection is declared dead and recovered
+	 */
+	@Getter
+	@Setter
+	private long livenessTimeout = 10000;
+	
+	/**
+	 * p99 latency, in milliseconds, of broker round trips above which a node is considered slow. 
+	 * 0 disables latency based failover.
+	 */
+	@Getter
+	@Setter
+	private long latencyFailoverThreshold = 0;
+	
+	/**
+	 * How long, in milliseconds, a node must stay slow before we fail over to another node
+	 */
+	@Getter
+	@Setter
+	private long latencyFailoverPeriod = 30000;
+	
+	/**
+	 * Minimum time, in milliseconds, between two latency based failovers
+	 */
+	@Getter
+	@Setter
+	private long latencyFailoverCooldown = 300000;
+	
+	/**
+	 * Keep an idle, pre-established connection, preferably to another node, that is swapped in 
+	 * immediately when the connection fails
+	 */
+	@Getter
+	@Setter
+	private boolean standbyConnectionEnabled = false;
+	
+	/**
+	 * Only reopen channels with consumers during a reconnect. Other channels are reopened, 
+	 * and their recorded calls replayed, the first time they are used afterwards.
+	 */
+	@Getter
+	@Setter
+	private boolean lazyChannelRecovery = false;
+	
+	/**
+	 * Longest time, in milliseconds, a channel call waits for the connection to be recovered before
+	 * failing with a {@link RecoveryTimeoutException}. 0 waits until recovery succeeds or gives up.
+	 */
+	@Getter
+	@Setter
+	private long maxRecoveryWait = 0;
+	
+	/**
+	 * How long, in milliseconds, the broker must be unreachable before channel calls fail fast 
+	 * with a {@link CircuitOpenException}. 0 disables the circuit breaker.
+	 */
+	@Getter
+	@Setter
+	private long circuitBreakerOpenAfter = 0;
+	
+	/**
+	 * While the circuit breaker is open, one call per interval, in milliseconds, is let through 
+	 * to wait for recovery
+	 */
+	@Getter
+	@Setter
+	private long circuitBreakerTrialInterval = 5000;
+	
+	/**
+	 * Directory in which messages published while the connection is down are spooled until 
+	 * they can be sent. null disables spooling.
+	 * 
+	 * Each connection locks a subdirectory of its own, the first of name-0, name-1, ... that no 
+	 * other connection holds, with the name from {@link #setPublishSpoolName(String)}. After a 
+	 * restart messages left in a subdirectory are published by whichever connection claims it.
+	 */
+	@Getter
+	@Setter
+	private String publishSpoolDirectory = null;
+	
+	/**
+	 * Prefix of the spool subdirectories of this factory. Give factories that share a spool 
+	 * directory but connect to different brokers different names.
+	 */
+	@Getter
+	@Setter
+	private String publishSpoolName = "connection";
+	
+	/**
+	 * Force every spooled message to disk so it survives a power failure, not only a crash of 
+	 * the process. Much slower.
+	 */
+	@Getter
+	@Setter
+	private boolean publishSpoolSync = false;
+	
+	/**
+	 * Size in bytes of each spool segment file
+	 */
+	@Getter
+	@Setter
+	private int publishSpoolSegmentSize = 64 * 1024 * 1024;
+	
+	/**
+	 * Codec applied to published bodies and reversed on delivery and basicGet, e.g. 
+	 * {@link DeflateCodec}. Bodies that cannot be decoded are passed on as they are, with their 
+	 * content-encoding. null disables encoding.
+	 */
+	@Getter
+	@Setter
+	private BodyCodec bodyCodec = null;
+	
+	/**
+	 * Bodies smaller than this many bytes are published as they are
+	 */
+	@Getter
+	@Setter
+	private int bodyCodecThreshold = 1024;
+	
 	@Delegate(excludes=HaConnectionFactoryPruned.class)
 	private final ConnectionFactory delegate;
 	
@@ -30,11 +159,43 @@ public class HaConnectionFactory {
 		delegate = new ConnectionFactory();
 	}
 	
-	protected HaConnection createConnectionProxyInstance(ExecutorService executor, final Address[] addrs, final Connection targetConnection) {      
+	protected HaConnection createConnectionProxyInstance(ExecutorService executor, final Address[] addrs, final Connection targetConnection) throws IOException {      
         ReconnectionFactory factory = new ReconnectionFactory(this, executor, addrs);
-        return new HaConnection(factory, targetConnection, reconnectDelay, maxReconnectTries);
+        HaConnection connection = new HaConnection(factory, targetConnection, reconnectDelay, maxReconnectTries);
+        connection.setLazyChannelRecovery(lazyChannelRecovery);
+        connection.setMaxRecoveryWait(maxRecoveryWait);
+        if(circuitBreakerOpenAfter > 0) {
+        	connection.enableCircuitBreaker(circuitBreakerOpenAfter, circuitBreakerTrialInterval);
+        }
+        if(livenessProbeInterval > 0) {
+        	connection.startLivenessMonitor(livenessProbeInterval, livenessTimeout);
+        }
+        if(latencyFailoverThreshold > 0) {
+        	connection.startLatencyMonitor(latencyFailoverThreshold, latencyFailoverPeriod, latencyFailoverCooldown);
+        }
+        if(standbyConnectionEnabled) {
+        	connection.enableStandby();
+        }
+        if(bodyCodec != null) {
+        	connection.setBodyCodec(bodyCodec, bodyCodecThreshold);
+        }
+        if(publishSpoolDirectory != null) {
+        	connection.enableSpool(claimPublishSpool());
+        }
+        return connection;
     }
 	
+	private PublishSpool claimPublishSpool() throws IOException {
+		for(int i = 0; ; i++) {
+			File directory = new File(publishSpoolDirectory, publishSpoolName+"-"+i);
+			try {
+				return new PublishSpool(directory, publishSpoolSegmentSize, publishSpoolSync);
+			} catch (SpoolLockedException e) {
+				//held by another connection, try the next one
+			}
+		}
+	}
+	
 	protected Connection newDelegateConnection(ExecutorService executor, Address[] addrs) throws IOException {
 		return delegate.newConnection(executor, addrs);
 	}
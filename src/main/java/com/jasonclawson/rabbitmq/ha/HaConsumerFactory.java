@@ -0,0 +1,10 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+
+/**
+ * Creates the consumers of a {@link HaConsumerGroup}, one per channel
+ */
+public interface HaConsumerFactory {
+	HaConsumer createConsumer(HaChannel channel) throws IOException;
+}
@@ -0,0 +1,144 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Consumes one queue with a number of consumers, each on its own {@link HaChannel} so deliveries
+ * are dispatched and acked in parallel. The channels are regular HA channels, so the consumers are 
+ * recovered on reconnect like any other. Create one with 
+ * {@link HaConnection#createConsumerGroup(String, boolean, int, int, HaConsumerFactory)}.
+ */
+@Slf4j
+public class HaConsumerGroup {
+	@Getter(AccessLevel.PACKAGE)
+	private final HaConnection connection;
+	@Getter
+	private final String queue;
+	private final boolean autoAck;
+	private final int prefetch;
+	private final HaConsumerFactory consumerFactory;
+	
+	/**
+	 * newest last, we shrink from the end
+	 */
+	private final List<HaChannel> channels = new ArrayList<HaChannel>();
+	private boolean shutdown = false;
+	
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong acked = new AtomicLong();
+	private final AtomicLong nacked = new AtomicLong();
+	
+	private final HaAckListener ackCounter = new HaAckListener() {
+		@Override
+		public void handleAck(DeliveryTag deliveryTag, boolean multiple) {
+			acked.incrementAndGet();
+		}
+
+		@Override
+		public void handleNack(DeliveryTag deliveryTag, boolean multiple, boolean requeue) {
+			nacked.incrementAndGet();
+		}
+	};
+	
+	HaConsumerGroup(HaConnection connection, String queue, boolean autoAck, int prefetch, HaConsumerFactory consumerFactory) {
+		this.connection = connection;
+		this.queue = queue;
+		this.autoAck = autoAck;
+		this.prefetch = prefetch;
+		this.consumerFactory = consumerFactory;
+	}
+	
+	/**
+	 * Adds or removes consumers until there are size of them. Removed consumers have their 
+	 * channel closed, the broker requeues the deliveries they have not acked.
+	 */
+	public synchronized void resize(int size) throws IOException {
+		if(shutdown) {
+			throw new IllegalStateException("Consumer group for queue "+queue+" has been shut down");
+		}
+		while(channels.size() < size) {
+			channels.add(startConsumer());
+		}
+		while(channels.size() > size) {
+			stopConsumer(channels.remove(channels.size() - 1));
+		}
+	}
+	
+	public synchronized int getSize() {
+		return channels.size();
+	}
+	
+	/**
+	 * Closes the channels of all consumers. The group cannot be resized afterwards.
+	 */
+	public synchronized void shutdown() {
+		if(shutdown) {
+			return;
+		}
+		shutdown = true;
+		for(HaChannel channel : channels) {
+			stopConsumer(channel);
+		}
+		channels.clear();
+	}
+	
+	/**
+	 * @return the number of deliveries received by all consumers of the group
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+	
+	/**
+	 * @return the number of basicAck calls made on the channels of the group. Multiple acks count once.
+	 */
+	public long getAckedCount() {
+		return acked.get();
+	}
+	
+	/**
+	 * @return the number of basicNack and basicReject calls made on the channels of the group
+	 */
+	public long getNackedCount() {
+		return nacked.get();
+	}
+	
+	private HaChannel startConsumer() throws IOException {
+		HaChannel channel = connection.createChannel();
+		try {
+			if(prefetch > 0) {
+				channel.basicQos(prefetch);
+			}
+			channel.addAckListener(ackCounter);
+			HaConsumer consumer = new ForwardingHaConsumer(consumerFactory.createConsumer(channel)) {
+				@Override
+				public void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) throws IOException {
+					delivered.incrementAndGet();
+					super.handleDelivery(consumerTag, envelope, properties, body);
+				}
+			};
+			channel.basicConsume(queue, autoAck, consumer);
+			return channel;
+		} catch (IOException e) {
+			stopConsumer(channel);
+			throw e;
+		}
+	}
+	
+	private void stopConsumer(HaChannel channel) {
+		try {
+			channel.close();
+		} catch (Exception e) {
+			log.debug("Error closing consumer channel of queue {}: {}", queue, e.toString());
+		}
+	}
+}
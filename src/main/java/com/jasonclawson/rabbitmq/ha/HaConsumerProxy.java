@@ -17,15 +17,27 @@ public class HaConsumerProxy implements HaConsumer {
 	private final HaChannelProxy haChannel;
 	private final Method basicConsumeMethod;
 	private final Object[] basicConsumeArgs;
+	private volatile String consumerTag;
 
+	protected String getConsumerTag() {
+		return consumerTag;
+	}
+	
 	protected Object reconsume() throws IOException {
+        //if I reconsume... I need to clear my consumer
+		if(delegateConsumer instanceof ResettableConsumer) {
+			log.debug("Resetting consumer due to reconsume call");
+			((ResettableConsumer) delegateConsumer).reset();
+		}
+		return resubscribe();
+	}
+	
+	/**
+	 * Subscribes again on the current channel. Unlike {@link #reconsume()} locally buffered deliveries 
+	 * are kept, they are still valid when the channel was not replaced.
+	 */
+	protected Object resubscribe() throws IOException {
 		try {
-            //if I reconsume... I need to clear my consumer
-			if(delegateConsumer instanceof HaQueuingConsumer) {
-				log.debug("Clearing HaQueuingConsumer queue due to reconsume call");
-				((HaQueuingConsumer) delegateConsumer).reset();
-			}
-			
 			log.debug("invoking {} on channel internal id {}",basicConsumeMethod.getName(), haChannel.getInternalChannelId());
 			return haChannel.invoke(haChannel, basicConsumeMethod, basicConsumeArgs);
         } catch (Error e) {
@@ -54,6 +66,20 @@ public class HaConsumerProxy implements HaConsumer {
 		 * via a close() call.
 		 */
 		log.debug("Consumer {} proxy recieved a Shutdown Signal {}. {}", consumerTag, sig.isInitiatedByApplication() ? "initiated by the app" : "not initiated by the app", sig.toString());
+		if(HaUtils.isChannelError(sig)) {
+			log.debug("I will ask to recover the channel");
+			try {
+				haChannel.recoverChannel();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.warn("Thread was interrupted");
+				throw new RuntimeException(e);
+			} catch (IOException e) {
+				log.error("Unable to recover channel after a channel error", e);
+			}
+			return;
+		}
+		
 		log.debug(HaUtils.shouldReconnect(sig)?"I will ask to reconnect":"I will not ask to reconnect");
 		if(HaUtils.shouldReconnect(sig)) {
 			try {
@@ -70,6 +96,7 @@ public class HaConsumerProxy implements HaConsumer {
 	}
 	
 	public void handleConsumeOk(String consumerTag) {
+		this.consumerTag = consumerTag;
 		delegateConsumer.handleConsumeOk(consumerTag);
 	}
 
@@ -77,14 +104,32 @@ public class HaConsumerProxy implements HaConsumer {
 		delegateConsumer.handleCancelOk(consumerTag);
 	}
 
+	/**
+	 * The broker cancelled this consumer, for example because its queue was deleted or a mirrored 
+	 * queue failed over. Only this consumer is subscribed again; if that is not possible the 
+	 * cancel is passed on to the application.
+	 */
 	public void handleCancel(String consumerTag) throws IOException {		
-		log.debug("Consumer proxy recieved a cancel for consumer tag {}. I will try to reconnect", consumerTag);
+		log.debug("Consumer proxy recieved a cancel for consumer tag {}. I will try to re-subscribe", consumerTag);
 		try {
-			haChannel.askConnectionToReconnect();
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-			log.warn("Thread was interrupted");
-			throw new RuntimeException(e);
+			resubscribe();
+		} catch (IOException e) {
+			log.error("Unable to re-subscribe consumer {}", consumerTag, e);
+			haChannel.abandonConsumer(this);
+		} catch (ShutdownSignalException e) {
+			log.error("Unable to re-subscribe consumer {}", consumerTag, e);
+			haChannel.abandonConsumer(this);
+		}
+	}
+	
+	/**
+	 * Called when this consumer will no longer be recovered
+	 */
+	protected void cancelled() {
+		try {
+			delegateConsumer.handleCancel(consumerTag);
+		} catch (IOException e) {
+			log.warn("Consumer failed to handle cancel", e);
 		}
 	}
 
@@ -0,0 +1,34 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds how long channel calls made by the current thread may wait for the connection to be 
+ * recovered. Once the deadline passes they fail with a {@link RecoveryTimeoutException}.
+ * 
+ * <pre>
+ * HaDeadline.set(200, TimeUnit.MILLISECONDS);
+ * try {
+ *     channel.basicPublish(exchange, routingKey, props, body);
+ * } finally {
+ *     HaDeadline.clear();
+ * }
+ * </pre>
+ */
+public final class HaDeadline {
+	private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+	
+	private HaDeadline() {}
+	
+	public static void set(long timeout, TimeUnit unit) {
+		DEADLINE.set(System.nanoTime() + unit.toNanos(timeout));
+	}
+	
+	public static void clear() {
+		DEADLINE.remove();
+	}
+	
+	static Long get() {
+		return DEADLINE.get();
+	}
+}
@@ -1,5 +1,7 @@
 package com.jasonclawson.rabbitmq.ha;
 
+import java.nio.ByteBuffer;
+
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.AMQP.BasicProperties;
 
@@ -7,11 +9,23 @@ public class HaDelivery {
 	private final HaEnvelope _envelope;
     private final AMQP.BasicProperties _properties;
     private final byte[] _body;
+    private final ByteBuffer _bodyBuffer;
 
     public HaDelivery(HaEnvelope envelope, AMQP.BasicProperties properties, byte[] body) {
         _envelope = envelope;
         _properties = properties;
         _body = body;
+        _bodyBuffer = null;
+    }
+    
+    /**
+     * @param body read only buffer holding the body, usually off-heap memory of a {@link DirectBufferArena}
+     */
+    public HaDelivery(HaEnvelope envelope, AMQP.BasicProperties properties, ByteBuffer body) {
+        _envelope = envelope;
+        _properties = properties;
+        _body = null;
+        _bodyBuffer = body;
     }
 
     /**
@@ -31,10 +45,36 @@ public class HaDelivery {
     }
 
     /**
-     * Retrieve the message body.
+     * Retrieve the message body. An off-heap body is copied to the heap on every call, 
+     * use {@link #getBodyBuffer()} to avoid that.
      * @return the message body
      */
     public byte[] getBody() {
-        return _body;
+        if(_bodyBuffer == null) {
+            return _body;
+        }
+        ByteBuffer buffer = _bodyBuffer.duplicate();
+        byte[] body = new byte[buffer.remaining()];
+        buffer.get(body);
+        return body;
+    }
+    
+    /**
+     * Retrieve the message body as a read only buffer. An off-heap body is only valid until the 
+     * delivery is acked, nacked or rejected.
+     * @return the message body
+     */
+    public ByteBuffer getBodyBuffer() {
+        if(_bodyBuffer == null) {
+            return _body == null ? null : ByteBuffer.wrap(_body).asReadOnlyBuffer();
+        }
+        return _bodyBuffer.duplicate();
+    }
+    
+    /**
+     * @return true if the body is held in off-heap memory
+     */
+    public boolean isOffHeap() {
+        return _bodyBuffer != null && _bodyBuffer.isDirect();
     }
 }
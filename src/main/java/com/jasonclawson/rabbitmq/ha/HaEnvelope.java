@@ -2,11 +2,15 @@ package com.jasonclawson.rabbitmq.ha;
 
 import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import lombok.ToString;
 
 import com.rabbitmq.client.Envelope;
 
 @Data
+@ToString(exclude="settlements")
+@EqualsAndHashCode(exclude="settlements")
 public class HaEnvelope {
 	@Getter
 	private DeliveryTag deliveryTag;
@@ -14,9 +18,26 @@ public class HaEnvelope {
 	@Getter(AccessLevel.PROTECTED)
 	private Envelope internalEnvelope;
 	
+	/**
+	 * Settlements of the channel the delivery came from, null if it is not settled through them
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final ChannelSettlements settlements;
+	
 	public HaEnvelope(long internalChannelId, Envelope internalEnvelope) {
+		this(internalChannelId, internalEnvelope, null);
+	}
+	
+	HaEnvelope(long internalChannelId, Envelope internalEnvelope, ChannelSettlements settlements) {
 		this.deliveryTag = new DeliveryTag(internalChannelId, internalEnvelope.getDeliveryTag());
 		this.internalEnvelope = internalEnvelope;
+		this.settlements = settlements;
+	}
+	
+	public HaEnvelope(DeliveryTag deliveryTag, Envelope internalEnvelope) {
+		this.deliveryTag = deliveryTag;
+		this.internalEnvelope = internalEnvelope;
+		this.settlements = null;
 	}
 
 	public boolean isRedeliver() {
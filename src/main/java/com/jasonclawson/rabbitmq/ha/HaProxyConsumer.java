@@ -15,10 +15,31 @@ public class HaProxyConsumer implements Consumer {
 	private final long internalChannelId;
 	@Delegate
 	private final HaConsumer delegate;	
+	private CodecStage codecStage;
+	/**
+	 * registers the deliveries to be settled, null with autoAck
+	 */
+	private ChannelSettlements settlements;
+	
+	HaProxyConsumer(long internalChannelId, HaConsumer delegate, CodecStage codecStage, ChannelSettlements settlements) {
+		this(internalChannelId, delegate);
+		this.codecStage = codecStage;
+		this.settlements = settlements;
+	}
 
 	@Override
 	public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
-		HaEnvelope haEnvelope = new HaEnvelope(internalChannelId, envelope);
+		HaEnvelope haEnvelope = new HaEnvelope(internalChannelId, envelope, settlements);
+		if(settlements != null) {
+			settlements.delivered(envelope.getDeliveryTag());
+		}
+		if(codecStage != null && codecStage.isEncoded(properties)) {
+			byte[] decoded = codecStage.decodeDelivered(envelope.getDeliveryTag(), body);
+			if(decoded != null) {
+				body = decoded;
+				properties = codecStage.decodedProperties(properties);
+			}
+		}
 		delegate.handleDelivery(consumerTag, haEnvelope, properties, body);
 	}
 }
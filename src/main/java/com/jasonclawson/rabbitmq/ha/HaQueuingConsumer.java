@@ -1,7 +1,6 @@
 package com.jasonclawson.rabbitmq.ha;
 
 import java.io.IOException;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import com.rabbitmq.client.AMQP;
@@ -16,14 +15,58 @@ import com.rabbitmq.utility.Utility;
  * @author jclawson
  *
  */
-public class HaQueuingConsumer extends DefaultHaConsumer {
+public class HaQueuingConsumer extends DefaultHaConsumer implements ResettableConsumer {
 
-	private final LinkedBlockingQueue<HaDelivery> queue = new LinkedBlockingQueue<HaDelivery>();
+	private final DeliveryBuffer queue;
+	private final OffHeapBodies offHeapBodies;
+	private final boolean autoAck;
 	private volatile ShutdownSignalException shutdown;
 	private volatile ConsumerCancelledException cancelled;
 
 	public HaQueuingConsumer(HaChannel channel) {
+		this(channel, new MemoryDeliveryBuffer());
+	}
+	
+	/**
+	 * @param buffer holds deliveries until they are taken, e.g. a {@link SpillingDeliveryBuffer} 
+	 * to keep a large prefetch off the heap
+	 */
+	public HaQueuingConsumer(HaChannel channel, DeliveryBuffer buffer) {
+		this(channel, buffer, null);
+	}
+	
+	/**
+	 * For consumers subscribed without autoAck.
+	 * 
+	 * @param arena when not null, bodies are copied to off-heap memory of the arena while they wait 
+	 * to be taken. They are released when the delivery is acked, nacked or rejected, so the body 
+	 * of a delivery must not be used after that. Deliveries the application never settles keep 
+	 * their memory, so every taken delivery must be settled. An arena cannot be combined with a 
+	 * {@link SpillingDeliveryBuffer}, which reads spilled bodies back onto the heap and would 
+	 * strand their blocks.
+	 */
+	public HaQueuingConsumer(HaChannel channel, DeliveryBuffer buffer, DirectBufferArena arena) {
+		this(channel, buffer, arena, false);
+	}
+	
+	/**
+	 * @param autoAck must match the autoAck flag the consumer is subscribed with. Deliveries of an 
+	 * autoAck consumer are never settled, so with an arena their bodies are copied back to the heap 
+	 * and released when the delivery is taken.
+	 */
+	public HaQueuingConsumer(HaChannel channel, DeliveryBuffer buffer, DirectBufferArena arena, boolean autoAck) {
 		super(channel);
+		if(arena != null && buffer instanceof SpillingDeliveryBuffer) {
+			throw new IllegalArgumentException("Off-heap bodies cannot be spilled, use either an arena or a spilling buffer");
+		}
+		this.queue = buffer;
+		this.autoAck = autoAck;
+		if(arena != null) {
+			offHeapBodies = new OffHeapBodies(arena);
+			channel.addAckListener(offHeapBodies);
+		} else {
+			offHeapBodies = null;
+		}
 	}
 
 	@Override
@@ -35,7 +78,11 @@ public class HaQueuingConsumer extends DefaultHaConsumer {
 	public void handleDelivery(String consumerTag, HaEnvelope envelope,
 			AMQP.BasicProperties properties, byte[] body) throws IOException {
 		checkShutdown();
-		this.queue.add(new HaDelivery(envelope, properties, body));
+		if(offHeapBodies != null) {
+			this.queue.put(offHeapBodies.store(envelope, properties, body));
+		} else {
+			this.queue.put(new HaDelivery(envelope, properties, body));
+		}
 	}
 
 	@Override
@@ -55,6 +102,11 @@ public class HaQueuingConsumer extends DefaultHaConsumer {
 	        if (null != cancelled)
 	            throw Utility.fixStackTrace(cancelled);
         }
+        if(autoAck && delivery != null && delivery.isOffHeap()) {
+        	HaDelivery onHeap = new HaDelivery(delivery.getEnvelope(), delivery.getProperties(), delivery.getBody());
+        	offHeapBodies.release(delivery.getEnvelope().getDeliveryTag());
+        	return onHeap;
+        }
         return delivery;
     }
 
@@ -85,7 +137,19 @@ public class HaQueuingConsumer extends DefaultHaConsumer {
         return handle(queue.poll(timeout, TimeUnit.MILLISECONDS));
     }
     
+    @Override
     public void reset() {
+    	if(offHeapBodies != null) {
+    		//deliveries discarded here are never acked, so give their memory back now
+    		try {
+	    		HaDelivery delivery;
+	    		while((delivery = queue.poll(0, TimeUnit.MILLISECONDS)) != null) {
+	    			offHeapBodies.release(delivery.getEnvelope().getDeliveryTag());
+	    		}
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
     	queue.clear();
     	this.shutdown = null;
     	this.cancelled = null;
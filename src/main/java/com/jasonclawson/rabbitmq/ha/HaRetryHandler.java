@@ -0,0 +1,130 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Retries failed messages of a queue after a delay instead of requeueing them, which the broker 
+ * redelivers right away. A failed message is published to a retry queue whose message TTL is the 
+ * delay and whose dead letter target is the original queue, so it comes back once the delay 
+ * expired. Delays grow exponentially with the attempt, up to the last tier. After the maximum 
+ * number of attempts the message goes to the dead letter queue of the original queue.
+ * 
+ * Retry queues are named <code>queue.retry.DELAY</code> and the dead letter queue 
+ * <code>queue.dead</code>. They are declared on construction and again whenever the channel is 
+ * recovered. The attempt count travels in the {@link #ATTEMPT_HEADER} header.
+ */
+@Slf4j
+public class HaRetryHandler {
+	public static final String ATTEMPT_HEADER = "x-ha-attempt";
+	public static final String ERROR_HEADER = "x-ha-error";
+	private static final String DEFAULT_EXCHANGE = "";
+	
+	private final HaChannel channel;
+	@Getter
+	private final String queue;
+	private final long[] delays;
+	private final int maxAttempts;
+	
+	private final HaChannelRecoveryListener topologyRecovery = new HaChannelRecoveryListener() {
+		@Override
+		public void channelRecovered(HaChannel recoveredChannel) throws IOException {
+			declareTopology(recoveredChannel);
+		}
+	};
+	
+	/**
+	 * @param initialDelay milliseconds before the first retry
+	 * @param tiers number of retry queues, each doubling the delay of the previous one
+	 * @param maxAttempts deliveries of a message before it is dead lettered
+	 */
+	public HaRetryHandler(HaChannel channel, String queue, long initialDelay, int tiers, int maxAttempts) throws IOException {
+		this.channel = channel;
+		this.queue = queue;
+		this.maxAttempts = maxAttempts;
+		this.delays = new long[Math.max(1, tiers)];
+		for(int i=0; i<delays.length; i++) {
+			delays[i] = initialDelay << i;
+		}
+		declareTopology(channel);
+		channel.addRecoveryListener(topologyRecovery);
+	}
+	
+	/**
+	 * Schedules the message for another delivery, or dead letters it when it ran out of attempts, 
+	 * and acks the original delivery
+	 * @param error why the message failed, recorded in a header, may be null
+	 */
+	public void retry(HaEnvelope envelope, BasicProperties properties, byte[] body, String error) throws IOException {
+		int attempt = getAttempt(properties) + 1;
+		if(attempt >= maxAttempts) {
+			log.warn("Message from queue {} failed {} times, dead lettering it", queue, attempt);
+			publish(deadLetterQueue(), properties, body, attempt, error);
+		} else {
+			long delay = delays[Math.min(attempt, delays.length) - 1];
+			log.debug("Retrying message from queue {} in {} ms, attempt {}", queue, delay, attempt);
+			publish(retryQueue(delay), properties, body, attempt, error);
+		}
+		channel.basicAck(envelope.getDeliveryTag(), false);
+	}
+	
+	/**
+	 * Sends the message to the dead letter queue right away and acks the original delivery
+	 */
+	public void deadLetter(HaEnvelope envelope, BasicProperties properties, byte[] body, String error) throws IOException {
+		publish(deadLetterQueue(), properties, body, getAttempt(properties) + 1, error);
+		channel.basicAck(envelope.getDeliveryTag(), false);
+	}
+	
+	/**
+	 * @return the number of times the message failed before
+	 */
+	public static int getAttempt(BasicProperties properties) {
+		Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+		Object attempt = headers == null ? null : headers.get(ATTEMPT_HEADER);
+		return attempt instanceof Number ? ((Number) attempt).intValue() : 0;
+	}
+	
+	public void close() {
+		channel.removeRecoveryListener(topologyRecovery);
+	}
+	
+	private void publish(String target, BasicProperties properties, byte[] body, int attempt, String error) throws IOException {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		if(properties != null && properties.getHeaders() != null) {
+			headers.putAll(properties.getHeaders());
+		}
+		headers.put(ATTEMPT_HEADER, attempt);
+		if(error != null) {
+			headers.put(ERROR_HEADER, error);
+		}
+		BasicProperties.Builder builder = properties == null ? new BasicProperties.Builder() : properties.builder();
+		//the retry queue TTL decides the delay, a per message expiration would override it
+		channel.basicPublish(DEFAULT_EXCHANGE, target, builder.headers(headers).expiration(null).build(), body);
+	}
+	
+	private void declareTopology(HaChannel target) throws IOException {
+		for(long delay : delays) {
+			Map<String, Object> arguments = new HashMap<String, Object>();
+			arguments.put("x-message-ttl", delay);
+			arguments.put("x-dead-letter-exchange", DEFAULT_EXCHANGE);
+			arguments.put("x-dead-letter-routing-key", queue);
+			target.queueDeclare(retryQueue(delay), true, false, false, arguments);
+		}
+		target.queueDeclare(deadLetterQueue(), true, false, false, null);
+	}
+	
+	private String retryQueue(long delay) {
+		return queue+".retry."+delay;
+	}
+	
+	private String deadLetterQueue() {
+		return queue+".dead";
+	}
+}
@@ -0,0 +1,265 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Request/reply over a {@link HaConnection}. Requests are published with a correlation id and 
+ * the name of a reply queue owned by this client. One consumer on the reply queue completes the 
+ * pending call with the matching correlation id, so any number of calls can be outstanding at once.
+ * 
+ * The reply queue is exclusive, so it disappears with the connection. It has a client generated 
+ * name and is declared again when the channel is recovered, before the reply consumer is 
+ * re-subscribed. Replies sent to the old queue are lost, so calls that were in flight are failed, 
+ * or published again if {@link #setRetryOnRecovery(boolean)} is set. Retried requests may be 
+ * processed twice by the server.
+ */
+@Slf4j
+public class HaRpcClient {
+	private static final long TIMEOUT_CHECK_INTERVAL = 100;
+	
+	private final HaChannel channel;
+	private final String exchange;
+	private final String routingKey;
+	@Getter
+	private final String replyQueue;
+	private final String correlationIdPrefix;
+	private final AtomicLong correlationIdGenerator = new AtomicLong();
+	private final ConcurrentHashMap<String, PendingCall> pendingCalls = new ConcurrentHashMap<String, PendingCall>();
+	private final ScheduledFuture<?> timeoutChecker;
+	
+	/**
+	 * Milliseconds to wait for a reply when no timeout is given
+	 */
+	@Getter
+	@Setter
+	private volatile long defaultTimeout = 30000;
+	
+	/**
+	 * When set, calls in flight when the channel is recovered are published again instead of failed
+	 */
+	@Getter
+	@Setter
+	private volatile boolean retryOnRecovery = false;
+	
+	private final HaChannelRecoveryListener replyQueueRecovery = new HaChannelRecoveryListener() {
+		@Override
+		public void channelRecovered(HaChannel recoveredChannel) throws IOException {
+			declareReplyQueue(recoveredChannel);
+			for(PendingCall call : pendingCalls.values()) {
+				if(retryOnRecovery) {
+					log.debug("Publishing call {} again after recovery", call.correlationId);
+					call.publish(recoveredChannel);
+				} else {
+					call.fail(new IOException("The reply to call "+call.correlationId+" was lost in a reconnect"));
+				}
+			}
+		}
+	};
+	
+	private final HaConsumer replyConsumer;
+	
+	public HaRpcClient(HaConnection connection, String exchange, String routingKey) throws IOException {
+		this.exchange = exchange;
+		this.routingKey = routingKey;
+		String id = UUID.randomUUID().toString();
+		this.replyQueue = "ha-rpc-reply-"+id;
+		this.correlationIdPrefix = id+"-";
+		
+		channel = connection.createChannel();
+		channel.addRecoveryListener(replyQueueRecovery);
+		declareReplyQueue(channel);
+		replyConsumer = new DefaultHaConsumer(channel) {
+			@Override
+			public void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) {
+				PendingCall call = properties.getCorrelationId() == null ? null : pendingCalls.get(properties.getCorrelationId());
+				if(call == null) {
+					log.debug("Dropping reply without pending call, correlation id {}", properties.getCorrelationId());
+					return;
+				}
+				call.complete(new HaDelivery(envelope, properties, body));
+			}
+		};
+		channel.basicConsume(replyQueue, true, replyConsumer);
+		
+		timeoutChecker = connection.getScheduler().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expireCalls();
+			}
+		}, TIMEOUT_CHECK_INTERVAL, TIMEOUT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	public HaDelivery call(byte[] body) throws IOException, TimeoutException, InterruptedException {
+		return call(null, body, defaultTimeout);
+	}
+	
+	/**
+	 * Publishes a request and waits for its reply
+	 * @param properties of the request, the correlation id and reply to are set by this client
+	 * @param timeout milliseconds to wait for the reply
+	 * @throws TimeoutException if no reply came within the timeout
+	 */
+	public HaDelivery call(BasicProperties properties, byte[] body, long timeout) throws IOException, TimeoutException, InterruptedException {
+		Future<HaDelivery> reply = callAsync(properties, body, timeout);
+		try {
+			return reply.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof TimeoutException) {
+				throw (TimeoutException) cause;
+			}
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("RPC call failed", cause);
+		}
+	}
+	
+	/**
+	 * Publishes a request without waiting for its reply. The returned future fails with a 
+	 * {@link TimeoutException} if no reply came within the timeout.
+	 */
+	public Future<HaDelivery> callAsync(BasicProperties properties, byte[] body, long timeout) throws IOException {
+		String correlationId = correlationIdPrefix + correlationIdGenerator.incrementAndGet();
+		AMQP.BasicProperties.Builder builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+		BasicProperties requestProperties = builder.correlationId(correlationId).replyTo(replyQueue).build();
+		
+		PendingCall call = new PendingCall(correlationId, requestProperties, body, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+		pendingCalls.put(correlationId, call);
+		try {
+			call.publish(channel);
+		} catch (IOException e) {
+			pendingCalls.remove(correlationId);
+			throw e;
+		}
+		return call;
+	}
+	
+	public int getOutstandingCalls() {
+		return pendingCalls.size();
+	}
+	
+	/**
+	 * Fails the outstanding calls and closes the channel of this client
+	 */
+	public void close() throws IOException {
+		timeoutChecker.cancel(false);
+		channel.removeRecoveryListener(replyQueueRecovery);
+		for(PendingCall call : pendingCalls.values()) {
+			call.fail(new IOException("RPC client closed"));
+		}
+		channel.close();
+	}
+	
+	private void declareReplyQueue(HaChannel target) throws IOException {
+		target.queueDeclare(replyQueue, false, true, true, null);
+	}
+	
+	private void expireCalls() {
+		long now = System.nanoTime();
+		Iterator<PendingCall> it = pendingCalls.values().iterator();
+		while(it.hasNext()) {
+			PendingCall call = it.next();
+			if(now - call.deadline >= 0) {
+				call.fail(new TimeoutException("No reply to call "+call.correlationId+" within the timeout"));
+			}
+		}
+	}
+	
+	private class PendingCall implements Future<HaDelivery> {
+		private final String correlationId;
+		private final BasicProperties properties;
+		private final byte[] body;
+		private final long deadline;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile HaDelivery reply;
+		private volatile Exception error;
+		
+		PendingCall(String correlationId, BasicProperties properties, byte[] body, long deadline) {
+			this.correlationId = correlationId;
+			this.properties = properties;
+			this.body = body;
+			this.deadline = deadline;
+		}
+		
+		void publish(HaChannel target) throws IOException {
+			target.basicPublish(exchange, routingKey, properties, body);
+		}
+		
+		void complete(HaDelivery delivery) {
+			if(pendingCalls.remove(correlationId, this)) {
+				reply = delivery;
+				done.countDown();
+			}
+		}
+		
+		void fail(Exception cause) {
+			if(pendingCalls.remove(correlationId, this)) {
+				error = cause;
+				done.countDown();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if(pendingCalls.remove(correlationId, this)) {
+				error = new CancellationException();
+				done.countDown();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return error instanceof CancellationException;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public HaDelivery get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		@Override
+		public HaDelivery get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if(!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return result();
+		}
+		
+		private HaDelivery result() throws ExecutionException {
+			if(error instanceof CancellationException) {
+				throw (CancellationException) error;
+			}
+			if(error != null) {
+				throw new ExecutionException(error);
+			}
+			return reply;
+		}
+	}
+}
@@ -1,15 +1,23 @@
 
 package com.jasonclawson.rabbitmq.ha;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.ConnectException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.ShutdownNotifier;
 import com.rabbitmq.client.ShutdownSignalException;
 import com.rabbitmq.client.impl.AMQCommand;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
 import com.rabbitmq.client.impl.AMQImpl.Channel;
 
 
@@ -59,6 +67,26 @@ public final class HaUtils {
     	return false;
     }
     
+    /**
+     * A channel error (soft error), like a 404 on a passive declare or a 406 on an unknown delivery
+     * tag, only closes the channel it happened on. The connection and its other channels are fine.
+     */
+    public static boolean isChannelError(Throwable e) {
+    	ShutdownSignalException signal = null;
+    	for(Throwable cause = e; cause != null && signal == null; cause = cause.getCause()) {
+    		if(cause instanceof ShutdownSignalException) {
+    			signal = (ShutdownSignalException) cause;
+    		}
+    	}
+    	
+    	if(signal instanceof AlreadyClosedException && signal.getReference() instanceof ShutdownNotifier) {
+    		//we used a channel that was closed earlier, its close reason tells us why
+    		signal = ((ShutdownNotifier) signal.getReference()).getCloseReason();
+    	}
+    	
+    	return signal != null && !signal.isHardError() && !signal.isInitiatedByApplication();
+    }
+    
     public static Object invokeAnUnwrapException(final Method method, final Object[] args, final Object target) throws Throwable {
         try {
         	return method.invoke(target, args);
@@ -67,4 +95,38 @@ public final class HaUtils {
         }
     }
     
+    /**
+     * Writes message properties in the same layout as a content header frame, which 
+     * {@link BasicProperties} knows how to read back
+     */
+    public static void writeProperties(DataOutputStream out, BasicProperties properties) throws IOException {
+    	out.writeBoolean(properties != null);
+    	if(properties != null) {
+    		out.writeShort(0); //weight
+    		out.writeLong(0); //body size
+    		properties.writePropertiesTo(new ContentHeaderPropertyWriter(out));
+    	}
+    }
+    
+    public static BasicProperties readProperties(DataInputStream in) throws IOException {
+    	return in.readBoolean() ? new BasicProperties(in) : null;
+    }
+    
+    /**
+     * Creates daemon threads named <code>name-N</code>. Background work done on behalf of a 
+     * connection should never keep the JVM alive.
+     */
+    public static ThreadFactory daemonThreadFactory(final String name) {
+    	return new ThreadFactory() {
+    		private final AtomicInteger threadNumber = new AtomicInteger(0);
+    		
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name+"-"+threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+    }
+    
 }
@@ -0,0 +1,160 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Timer for large numbers of timeouts that are usually cancelled before they expire. Timeouts 
+ * are hashed by expiry tick into a ring of buckets, each a doubly linked list, so scheduling and 
+ * cancelling are O(1). A single thread advances the wheel one bucket per tick and expires the 
+ * timeouts in it whose rounds are up. Expiry is accurate to one tick.
+ */
+@Slf4j
+public class HashedTimingWheel {
+	/**
+	 * Called on the wheel thread when a timeout expires, should return quickly
+	 */
+	public interface Task {
+		void expired(Timeout timeout);
+	}
+	
+	private final long tickNanos;
+	private final Timeout[] buckets;
+	private final int mask;
+	private final Thread worker;
+	private long tick = 0;
+	private volatile boolean running = true;
+	
+	/**
+	 * @param tickDuration milliseconds per tick
+	 * @param wheelSize number of buckets, rounded up to a power of two
+	 */
+	public HashedTimingWheel(long tickDuration, int wheelSize) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickDuration));
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		worker = HaUtils.daemonThreadFactory("ha-timing-wheel").newThread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		});
+		worker.start();
+	}
+	
+	public synchronized Timeout schedule(Task task, long delay, TimeUnit unit) {
+		long ticks = Math.max(1, (unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+		Timeout timeout = new Timeout(task, (int) ((tick + ticks) & mask), (ticks - 1) / buckets.length);
+		Timeout head = buckets[timeout.bucket];
+		timeout.next = head;
+		if(head != null) {
+			head.previous = timeout;
+		}
+		buckets[timeout.bucket] = timeout;
+		return timeout;
+	}
+	
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+	
+	private synchronized void unlink(Timeout timeout) {
+		if(timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else if(buckets[timeout.bucket] == timeout) {
+			buckets[timeout.bucket] = timeout.next;
+		} else {
+			//already expired or cancelled
+			return;
+		}
+		if(timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.next = null;
+		timeout.previous = null;
+	}
+	
+	private void turn() {
+		long deadline = System.nanoTime();
+		while(running) {
+			deadline += tickNanos;
+			long sleep = deadline - System.nanoTime();
+			if(sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			Timeout expired = advance();
+			while(expired != null) {
+				Timeout next = expired.next;
+				expired.next = null;
+				try {
+					expired.task.expired(expired);
+				} catch (RuntimeException e) {
+					log.warn("Timeout task failed", e);
+				}
+				expired = next;
+			}
+		}
+	}
+	
+	/**
+	 * @return the timeouts that expired this tick, linked through next
+	 */
+	private synchronized Timeout advance() {
+		tick++;
+		int bucket = (int) (tick & mask);
+		Timeout expired = null;
+		Timeout timeout = buckets[bucket];
+		while(timeout != null) {
+			Timeout next = timeout.next;
+			if(timeout.rounds <= 0) {
+				unlink(timeout);
+				timeout.expired = true;
+				timeout.next = expired;
+				expired = timeout;
+			} else {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+		return expired;
+	}
+	
+	public final class Timeout {
+		private final Task task;
+		private final int bucket;
+		private long rounds;
+		private Timeout next;
+		private Timeout previous;
+		private volatile boolean expired = false;
+		
+		private Timeout(Task task, int bucket, long rounds) {
+			this.task = task;
+			this.bucket = bucket;
+			this.rounds = rounds;
+		}
+		
+		/**
+		 * @return false if the timeout already expired
+		 */
+		public boolean cancel() {
+			synchronized(HashedTimingWheel.this) {
+				if(expired) {
+					return false;
+				}
+				unlink(this);
+				return true;
+			}
+		}
+		
+		public boolean isExpired() {
+			return expired;
+		}
+	}
+}
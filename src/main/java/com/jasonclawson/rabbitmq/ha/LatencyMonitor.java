@@ -0,0 +1,138 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Detects gray failures: a broker node that is still up but answers far slower than it should. 
+ * The latency of synchronous calls and confirm waits is recorded into a log2 histogram, and every 
+ * window the p99 is compared to the threshold. Once the p99 has been over the threshold for the 
+ * whole slow period the connection fails over to another node.
+ * 
+ * To avoid flapping, a node is only considered healthy again once its p99 falls below half the 
+ * threshold, and no failover happens within the cooldown of the previous one.
+ */
+@Slf4j
+class LatencyMonitor implements Runnable {
+	private static final long WINDOW_MILLIS = 1000;
+	
+	/**
+	 * Windows with fewer samples than this do not say anything about the node
+	 */
+	private static final int MIN_SAMPLES = 10;
+	private static final double RECOVERY_RATIO = 0.5;
+	private static final int BUCKETS = 40;
+	
+	/**
+	 * Methods that wait on a reply from the broker
+	 */
+	private static final Set<String> TRACKED_METHOD_NAMES = new HashSet<String>(Arrays.asList(
+			"exchangeDeclare", "exchangeDeclarePassive", "exchangeDelete", "exchangeBind", "exchangeUnbind",
+			"queueDeclare", "queueDeclarePassive", "queueDelete", "queueBind", "queueUnbind", "queuePurge",
+			"basicGet", "basicQos", "basicCancel", "basicRecover", "flow", "txSelect", "txCommit", "txRollback",
+			"confirmSelect", "waitForConfirms", "waitForConfirmsOrDie", "rpc"));
+	
+	private final HaConnection connection;
+	private final long thresholdMicros;
+	private final long slowPeriodNanos;
+	private final long cooldownNanos;
+	
+	/**
+	 * bucket i counts latencies in [2^(i-1), 2^i) microseconds
+	 */
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+	private volatile long lastP99Micros;
+	
+	//only touched by the scheduler thread
+	private long slowSince = -1;
+	private long lastFailover = -1;
+	
+	LatencyMonitor(HaConnection connection, long threshold, long slowPeriod, long cooldown) {
+		this.connection = connection;
+		this.thresholdMicros = TimeUnit.MILLISECONDS.toMicros(threshold);
+		this.slowPeriodNanos = TimeUnit.MILLISECONDS.toNanos(slowPeriod);
+		this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldown);
+	}
+	
+	void start(ScheduledExecutorService scheduler) {
+		scheduler.scheduleAtFixedRate(this, WINDOW_MILLIS, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	static boolean isTracked(String methodName) {
+		return TRACKED_METHOD_NAMES.contains(methodName);
+	}
+	
+	void record(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+	}
+	
+	/**
+	 * @return the p99 latency, in milliseconds, of the last window that had enough samples
+	 */
+	long getLastP99() {
+		return TimeUnit.MICROSECONDS.toMillis(lastP99Micros);
+	}
+	
+	@Override
+	public void run() {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for(int i=0; i<BUCKETS; i++) {
+			counts[i] = histogram.getAndSet(i, 0);
+			total += counts[i];
+		}
+		
+		if(connection.getReconnectionState() != HaConnection.CONNECTED) {
+			slowSince = -1;
+			return;
+		}
+		
+		if(total < MIN_SAMPLES) {
+			return;
+		}
+		
+		long p99 = percentile(counts, total, 0.99);
+		lastP99Micros = p99;
+		long now = System.nanoTime();
+		
+		if(slowSince < 0) {
+			if(p99 > thresholdMicros) {
+				log.info("p99 latency of {}us is over the threshold of {}us", p99, thresholdMicros);
+				slowSince = now;
+			}
+		} else if(p99 < thresholdMicros * RECOVERY_RATIO) {
+			log.info("p99 latency of {}us has recovered", p99);
+			slowSince = -1;
+		}
+		
+		if(slowSince >= 0 
+				&& now - slowSince >= slowPeriodNanos
+				&& (lastFailover < 0 || now - lastFailover >= cooldownNanos)) {
+			slowSince = -1;
+			lastFailover = now;
+			connection.failover("p99 latency of "+p99+"us has been over the threshold of "+thresholdMicros+"us for "+TimeUnit.NANOSECONDS.toMillis(slowPeriodNanos)+"ms");
+		}
+	}
+	
+	/**
+	 * @return the upper bound, in microseconds, of the bucket holding the given percentile
+	 */
+	private static long percentile(long[] counts, long total, double percentile) {
+		long rank = (long) Math.ceil(total * percentile);
+		long seen = 0;
+		for(int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return 1L << (counts.length - 1);
+	}
+}
@@ -0,0 +1,99 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Actively probes the broker behind a {@link HaConnection}. A half-open TCP connection (node powered 
+ * off, network partition) does not fail until the OS gives up on it, which can take minutes. This 
+ * monitor sends a cheap passive declare on a dedicated channel every probe interval and forces a 
+ * reconnect when the broker has not answered within the timeout.
+ * 
+ * The probe runs on its own thread because a probe on a dead connection blocks until the 
+ * connection is torn down.
+ */
+@Slf4j
+class LivenessMonitor implements Runnable {
+	/**
+	 * Exists on every broker, so a passive declare of it is a pure round trip
+	 */
+	private static final String PROBE_EXCHANGE = "amq.direct";
+	
+	private final HaConnection connection;
+	private final long probeInterval;
+	private final long timeoutNanos;
+	private final ExecutorService prober = Executors.newSingleThreadExecutor(HaUtils.daemonThreadFactory("ha-liveness-probe"));
+	private final AtomicBoolean probeInFlight = new AtomicBoolean(false);
+	private volatile long lastAlive = System.nanoTime();
+	
+	//only touched by the prober thread
+	private Channel probeChannel;
+	
+	private final Runnable probe = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				probeChannel().exchangeDeclarePassive(PROBE_EXCHANGE);
+				markAlive();
+			} catch (Exception e) {
+				log.debug("Liveness probe failed {}", e.toString());
+				probeChannel = null;
+			} finally {
+				probeInFlight.set(false);
+			}
+		}
+	};
+	
+	LivenessMonitor(HaConnection connection, long probeInterval, long timeout) {
+		this.connection = connection;
+		this.probeInterval = probeInterval;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+	
+	void start(ScheduledExecutorService scheduler) {
+		scheduler.scheduleWithFixedDelay(this, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	void stop() {
+		prober.shutdownNow();
+	}
+	
+	void markAlive() {
+		lastAlive = System.nanoTime();
+	}
+	
+	@Override
+	public void run() {
+		if(connection.getReconnectionState() != HaConnection.CONNECTED) {
+			//recovery is already in progress, start counting again once it is done
+			markAlive();
+			return;
+		}
+		
+		if(probeInFlight.compareAndSet(false, true)) {
+			prober.execute(probe);
+		}
+		
+		long silentFor = System.nanoTime() - lastAlive;
+		if(silentFor > timeoutNanos) {
+			markAlive();
+			connection.forceReconnect("Broker did not answer a liveness probe for "+TimeUnit.NANOSECONDS.toMillis(silentFor)+"ms");
+		}
+	}
+	
+	private Channel probeChannel() throws Exception {
+		Connection current = connection.getDelegateConnection();
+		if(probeChannel == null || !probeChannel.isOpen() || probeChannel.getConnection() != current) {
+			probeChannel = current.createChannel();
+		}
+		return probeChannel;
+	}
+}
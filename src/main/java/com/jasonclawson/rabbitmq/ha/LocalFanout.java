@@ -0,0 +1,105 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import com.jasonclawson.rabbitmq.ha.LocalFanoutConsumer.AckMode;
+import com.jasonclawson.rabbitmq.ha.LocalFanoutConsumer.SlowSubscriberPolicy;
+import com.jasonclawson.rabbitmq.ha.LocalFanoutConsumer.Subscription;
+
+/**
+ * Keeps one {@link LocalFanoutConsumer} per topic, an exchange and routing key, for in-process 
+ * subscribers. The first subscriber of a topic declares an exclusive queue bound to it on a 
+ * channel of its own; the queue and binding are declared again when the channel is recovered. 
+ * The topic is closed when its last subscriber is unsubscribed through this class.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class LocalFanout {
+	private final HaConnection connection;
+	private final AckMode ackMode;
+	private final int prefetch;
+	private final Map<String, Topic> topics = new HashMap<String, Topic>();
+	
+	public synchronized Subscription subscribe(String exchange, String routingKey, LocalSubscriber subscriber, int queueCapacity, SlowSubscriberPolicy policy) throws IOException {
+		String key = exchange+"/"+routingKey;
+		Topic topic = topics.get(key);
+		if(topic == null) {
+			topic = new Topic(exchange, routingKey);
+			topic.open();
+			topics.put(key, topic);
+		}
+		return topic.consumer.subscribe(subscriber, queueCapacity, policy);
+	}
+	
+	public synchronized void unsubscribe(String exchange, String routingKey, Subscription subscription) throws IOException {
+		subscription.unsubscribe();
+		String key = exchange+"/"+routingKey;
+		Topic topic = topics.get(key);
+		if(topic != null && topic.consumer.getSubscriberCount() == 0) {
+			topics.remove(key);
+			topic.close();
+		}
+	}
+	
+	public synchronized void close() {
+		for(Topic topic : topics.values()) {
+			try {
+				topic.close();
+			} catch (IOException e) {
+				log.warn("Unable to close local fan-out topic {}/{}", topic.exchange, topic.routingKey, e);
+			}
+		}
+		topics.clear();
+	}
+	
+	private class Topic implements HaChannelRecoveryListener {
+		private final String exchange;
+		private final String routingKey;
+		private final String queue = "ha-fanout-"+UUID.randomUUID();
+		private HaChannel channel;
+		private LocalFanoutConsumer consumer;
+		
+		Topic(String exchange, String routingKey) {
+			this.exchange = exchange;
+			this.routingKey = routingKey;
+		}
+		
+		void open() throws IOException {
+			channel = connection.createChannel();
+			try {
+				channel.addRecoveryListener(this);
+				if(prefetch > 0) {
+					channel.basicQos(prefetch);
+				}
+				declare(channel);
+				consumer = new LocalFanoutConsumer(channel, ackMode);
+				channel.basicConsume(queue, false, consumer);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+		
+		void close() throws IOException {
+			channel.removeRecoveryListener(this);
+			consumer.close();
+			channel.close();
+		}
+		
+		@Override
+		public void channelRecovered(HaChannel recoveredChannel) throws IOException {
+			declare(recoveredChannel);
+		}
+		
+		private void declare(HaChannel target) throws IOException {
+			target.queueDeclare(queue, false, true, true, null);
+			target.queueBind(queue, exchange, routingKey);
+		}
+	}
+}
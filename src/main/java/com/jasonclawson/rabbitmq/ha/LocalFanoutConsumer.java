@@ -0,0 +1,232 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * One broker consumer that fans every delivery out to any number of in-process subscribers, so 
+ * components of one JVM interested in the same stream share a queue and a channel. Every 
+ * subscription has a bounded queue and a thread of its own, and a policy for when its queue is 
+ * full.
+ * 
+ * Deliveries are acked on receipt, or once every subscriber processed them. A delivery that a 
+ * subscriber dropped or failed on counts as processed. Deliveries queued for subscribers are 
+ * discarded on reset when they are acked after processing, because the broker redelivers them.
+ */
+@Slf4j
+public class LocalFanoutConsumer extends DefaultHaConsumer implements ResettableConsumer {
+	public enum AckMode { ON_RECEIPT, AFTER_ALL_PROCESSED }
+	
+	public enum SlowSubscriberPolicy {
+		/**
+		 * Wait for room, which holds up the other subscribers
+		 */
+		BLOCK,
+		/**
+		 * Drop the new delivery for this subscriber
+		 */
+		DROP_NEWEST,
+		/**
+		 * Drop the oldest queued delivery of this subscriber to make room
+		 */
+		DROP_OLDEST,
+		/**
+		 * Unsubscribe the subscriber
+		 */
+		DISCONNECT
+	}
+	
+	private final AckMode ackMode;
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	
+	public LocalFanoutConsumer(HaChannel channel, AckMode ackMode) {
+		super(channel);
+		this.ackMode = ackMode;
+	}
+	
+	public Subscription subscribe(LocalSubscriber subscriber, int queueCapacity, SlowSubscriberPolicy policy) {
+		Subscription subscription = new Subscription(subscriber, queueCapacity, policy);
+		subscriptions.add(subscription);
+		subscription.thread.start();
+		return subscription;
+	}
+	
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+	
+	/**
+	 * Stops all subscriptions
+	 */
+	public void close() {
+		for(Subscription subscription : subscriptions) {
+			subscription.unsubscribe();
+		}
+	}
+	
+	@Override
+	public void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) throws IOException {
+		HaDelivery delivery = new HaDelivery(envelope, properties, body);
+		if(ackMode == AckMode.ON_RECEIPT) {
+			getChannel().basicAck(envelope.getDeliveryTag(), false);
+		}
+		
+		//one snapshot, so the count matches the subscriptions that are offered the delivery
+		Object[] current = subscriptions.toArray();
+		FanoutDelivery fanout = new FanoutDelivery(delivery, current.length);
+		for(Object subscription : current) {
+			((Subscription) subscription).offer(fanout);
+		}
+		fanout.processed();
+	}
+	
+	@Override
+	public void reset() {
+		if(ackMode == AckMode.AFTER_ALL_PROCESSED) {
+			for(Subscription subscription : subscriptions) {
+				subscription.queue.clear();
+			}
+		}
+	}
+	
+	/**
+	 * A delivery and the number of subscriptions that still have to process it
+	 */
+	private class FanoutDelivery {
+		private final HaDelivery delivery;
+		private final AtomicInteger remaining;
+		
+		FanoutDelivery(HaDelivery delivery, int subscribers) {
+			this.delivery = delivery;
+			//one extra, released by the dispatching thread once every subscription was offered it
+			this.remaining = new AtomicInteger(subscribers + 1);
+		}
+		
+		void processed() {
+			if(remaining.decrementAndGet() == 0 && ackMode == AckMode.AFTER_ALL_PROCESSED) {
+				try {
+					getChannel().basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+				} catch (Exception e) {
+					//a delivery of an old channel, the broker redelivers it
+					log.debug("Unable to ack fanned out delivery {}: {}", delivery.getEnvelope().getDeliveryTag(), e.toString());
+				}
+			}
+		}
+	}
+	
+	public class Subscription implements Runnable {
+		private final LocalSubscriber subscriber;
+		private final ArrayBlockingQueue<FanoutDelivery> queue;
+		private final SlowSubscriberPolicy policy;
+		private final Thread thread;
+		private volatile boolean active = true;
+		@Getter
+		private final AtomicLong droppedCount = new AtomicLong();
+		
+		Subscription(LocalSubscriber subscriber, int queueCapacity, SlowSubscriberPolicy policy) {
+			this.subscriber = subscriber;
+			this.queue = new ArrayBlockingQueue<FanoutDelivery>(queueCapacity);
+			this.policy = policy;
+			this.thread = HaUtils.daemonThreadFactory("ha-local-subscriber").newThread(this);
+		}
+		
+		public void unsubscribe() {
+			if(subscriptions.remove(this)) {
+				active = false;
+				thread.interrupt();
+				FanoutDelivery pending;
+				while((pending = queue.poll()) != null) {
+					pending.processed();
+				}
+			}
+		}
+		
+		public int getQueuedCount() {
+			return queue.size();
+		}
+		
+		void offer(FanoutDelivery fanout) {
+			if(!active) {
+				fanout.processed();
+				return;
+			}
+			if(enqueue(fanout) && !active && queue.remove(fanout)) {
+				//unsubscribed meanwhile and its queue may already be drained
+				fanout.processed();
+			}
+		}
+		
+		/**
+		 * @return true if the delivery was queued, otherwise it was counted as processed
+		 */
+		private boolean enqueue(FanoutDelivery fanout) {
+			if(queue.offer(fanout)) {
+				return true;
+			}
+			
+			switch(policy) {
+			case BLOCK:
+				try {
+					queue.put(fanout);
+					return true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					dropped(fanout);
+					return false;
+				}
+			case DROP_OLDEST:
+				FanoutDelivery oldest = queue.poll();
+				if(oldest != null) {
+					dropped(oldest);
+				}
+				if(queue.offer(fanout)) {
+					return true;
+				}
+				dropped(fanout);
+				return false;
+			case DISCONNECT:
+				log.warn("Disconnecting slow local subscriber {}", subscriber);
+				dropped(fanout);
+				unsubscribe();
+				return false;
+			case DROP_NEWEST:
+			default:
+				dropped(fanout);
+				return false;
+			}
+		}
+		
+		private void dropped(FanoutDelivery fanout) {
+			droppedCount.incrementAndGet();
+			fanout.processed();
+		}
+		
+		@Override
+		public void run() {
+			while(active) {
+				FanoutDelivery fanout;
+				try {
+					fanout = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					subscriber.handleDelivery(fanout.delivery);
+				} catch (Exception e) {
+					log.warn("Local subscriber {} failed on a delivery", subscriber, e);
+				} finally {
+					fanout.processed();
+				}
+			}
+		}
+	}
+}
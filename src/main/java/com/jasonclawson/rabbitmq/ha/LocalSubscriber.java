@@ -0,0 +1,12 @@
+package com.jasonclawson.rabbitmq.ha;
+
+/**
+ * In-process subscriber of a {@link LocalFanoutConsumer}. Called on a thread of its own 
+ * subscription, so a slow subscriber does not hold up the others.
+ */
+public interface LocalSubscriber {
+	/**
+	 * Do not ack the delivery, the fan-out consumer acks it
+	 */
+	void handleDelivery(HaDelivery delivery) throws Exception;
+}
@@ -0,0 +1,36 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unbounded on-heap delivery buffer, the default for {@link HaQueuingConsumer}
+ */
+public class MemoryDeliveryBuffer implements DeliveryBuffer {
+	private final LinkedBlockingQueue<HaDelivery> queue = new LinkedBlockingQueue<HaDelivery>();
+
+	@Override
+	public void put(HaDelivery delivery) {
+		queue.add(delivery);
+	}
+
+	@Override
+	public HaDelivery take() throws InterruptedException {
+		return queue.take();
+	}
+
+	@Override
+	public HaDelivery poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return queue.poll(timeout, unit);
+	}
+
+	@Override
+	public void clear() {
+		queue.clear();
+	}
+
+	@Override
+	public int size() {
+		return queue.size();
+	}
+}
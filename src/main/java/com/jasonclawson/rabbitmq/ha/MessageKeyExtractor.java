@@ -0,0 +1,23 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Derives the key that identifies a message, for example to recognise a redelivered duplicate
+ */
+public interface MessageKeyExtractor {
+	/**
+	 * Uses the message id property
+	 */
+	public static final MessageKeyExtractor MESSAGE_ID = new MessageKeyExtractor() {
+		@Override
+		public String getKey(HaEnvelope envelope, BasicProperties properties, byte[] body) {
+			return properties == null ? null : properties.getMessageId();
+		}
+	};
+	
+	/**
+	 * @return the key of the message, or null if it has none
+	 */
+	String getKey(HaEnvelope envelope, BasicProperties properties, byte[] body);
+}
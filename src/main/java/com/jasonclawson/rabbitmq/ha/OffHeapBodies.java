@@ -0,0 +1,66 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Keeps track of the delivery bodies a consumer copied into a {@link DirectBufferArena} and 
+ * releases them when the delivery is acked, nacked or rejected.
+ */
+class OffHeapBodies implements HaAckListener {
+	private final DirectBufferArena arena;
+	private final ConcurrentHashMap<DeliveryTag, DirectBufferArena.Block> blocks = new ConcurrentHashMap<DeliveryTag, DirectBufferArena.Block>();
+	
+	OffHeapBodies(DirectBufferArena arena) {
+		this.arena = arena;
+	}
+	
+	/**
+	 * @return a delivery with its body in the arena, or on the heap if the arena is full
+	 */
+	HaDelivery store(HaEnvelope envelope, BasicProperties properties, byte[] body) {
+		DirectBufferArena.Block block = body == null ? null : arena.copyOf(body);
+		if(block == null) {
+			return new HaDelivery(envelope, properties, body);
+		}
+		blocks.put(envelope.getDeliveryTag(), block);
+		return new HaDelivery(envelope, properties, block.asReadOnlyBuffer());
+	}
+	
+	void release(DeliveryTag deliveryTag) {
+		DirectBufferArena.Block block = blocks.remove(deliveryTag);
+		if(block != null) {
+			block.release();
+		}
+	}
+	
+	@Override
+	public void handleAck(DeliveryTag deliveryTag, boolean multiple) {
+		settle(deliveryTag, multiple);
+	}
+	
+	@Override
+	public void handleNack(DeliveryTag deliveryTag, boolean multiple, boolean requeue) {
+		settle(deliveryTag, multiple);
+	}
+	
+	private void settle(DeliveryTag deliveryTag, boolean multiple) {
+		if(!multiple) {
+			release(deliveryTag);
+			return;
+		}
+		
+		Iterator<Entry<DeliveryTag, DirectBufferArena.Block>> it = blocks.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry<DeliveryTag, DirectBufferArena.Block> entry = it.next();
+			DeliveryTag tag = entry.getKey();
+			if(tag.getInternalChannelId() == deliveryTag.getInternalChannelId() && tag.getDeliveryTag() <= deliveryTag.getDeliveryTag()) {
+				it.remove();
+				entry.getValue().release();
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A message to publish, with everything {@link HaChannel#basicPublish} needs
+ */
+@Data
+@RequiredArgsConstructor
+public class OutboundMessage {
+	private final String exchange;
+	private final String routingKey;
+	private final boolean mandatory;
+	private final BasicProperties properties;
+	private final byte[] body;
+	
+	public OutboundMessage(String exchange, String routingKey, BasicProperties properties, byte[] body) {
+		this(exchange, routingKey, false, properties, body);
+	}
+	
+	/**
+	 * @return the message published by a basicPublish call with the given arguments, or null for the
+	 * variant taking the immediate flag, which is not supported by RabbitMQ
+	 */
+	static OutboundMessage fromPublishArguments(Object[] args) {
+		if(args.length == 4) {
+			return new OutboundMessage((String) args[0], (String) args[1], (BasicProperties) args[2], (byte[]) args[3]);
+		}
+		if(args.length == 5) {
+			return new OutboundMessage((String) args[0], (String) args[1], (Boolean) args[2], (BasicProperties) args[3], (byte[]) args[4]);
+		}
+		return null;
+	}
+	
+	byte[] toBytes() throws IOException {
+		int bodyLength = body == null ? 0 : body.length;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(bodyLength + 256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(exchange);
+		out.writeUTF(routingKey);
+		out.writeBoolean(mandatory);
+		HaUtils.writeProperties(out, properties);
+		out.writeInt(bodyLength);
+		if(body != null) {
+			out.write(body);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	static OutboundMessage fromBytes(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		String exchange = in.readUTF();
+		String routingKey = in.readUTF();
+		boolean mandatory = in.readBoolean();
+		BasicProperties properties = HaUtils.readProperties(in);
+		byte[] body = new byte[in.readInt()];
+		in.readFully(body);
+		return new OutboundMessage(exchange, routingKey, mandatory, properties, body);
+	}
+}
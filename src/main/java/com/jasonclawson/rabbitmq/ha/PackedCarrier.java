@@ -0,0 +1,95 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import com.jasonclawson.rabbitmq.ha.ChannelSettlements.Outcome;
+
+/**
+ * A delivered pack, tracking which of its messages have been settled
+ */
+class PackedCarrier {
+	@Getter(AccessLevel.PACKAGE)
+	private final DeliveryTag deliveryTag;
+	private final int size;
+	
+	/**
+	 * unsettled packs of the same channel, by broker delivery tag, null if they are not tracked
+	 */
+	private final ConcurrentSkipListMap<Long, PackedCarrier> open;
+	
+	private final BitSet settled;
+	private int settledCount = 0;
+	private int rejected = 0;
+	private boolean requeue = false;
+	
+	PackedCarrier(DeliveryTag deliveryTag, int size, ConcurrentSkipListMap<Long, PackedCarrier> open) {
+		this.deliveryTag = deliveryTag;
+		this.size = size;
+		this.open = open;
+		this.settled = new BitSet(size);
+		if(open != null) {
+			open.put(deliveryTag.getDeliveryTag(), this);
+		}
+	}
+	
+	/**
+	 * Settles a message, or with multiple, it and all messages of the pack before it
+	 * @return true if this completed the pack, which is then to be settled on the broker
+	 */
+	boolean settle(int index, boolean multiple, Outcome outcome) {
+		boolean ack = outcome == Outcome.ACK;
+		boolean requeueNack = outcome == Outcome.REQUEUE;
+		return multiple ? settleUpTo(index, ack, requeueNack) : settleOne(index, ack, requeueNack);
+	}
+	
+	/**
+	 * Settles the messages of the pack that are not settled yet
+	 * @return true if this completed the pack
+	 */
+	boolean settleAll(Outcome outcome) {
+		return settle(size - 1, true, outcome);
+	}
+	
+	/**
+	 * ack when all messages were acked or some rejected without requeue, requeue when any message 
+	 * was nacked with requeue, which redelivers the acked messages of the pack too, and reject 
+	 * when all messages were rejected without requeue
+	 */
+	synchronized Outcome getOutcome() {
+		if(requeue) {
+			return Outcome.REQUEUE;
+		}
+		return rejected == size ? Outcome.REJECT : Outcome.ACK;
+	}
+	
+	private synchronized boolean settleUpTo(int index, boolean ack, boolean requeueNack) {
+		boolean completed = false;
+		for(int i=0; i<=index; i++) {
+			completed |= settleOne(i, ack, requeueNack);
+		}
+		return completed;
+	}
+	
+	private synchronized boolean settleOne(int index, boolean ack, boolean requeueNack) {
+		if(index < 0 || index >= size || settled.get(index)) {
+			return false;
+		}
+		settled.set(index);
+		settledCount++;
+		if(!ack) {
+			rejected++;
+			requeue |= requeueNack;
+		}
+		if(settledCount == size) {
+			if(open != null) {
+				open.remove(deliveryTag.getDeliveryTag(), this);
+			}
+			return true;
+		}
+		return false;
+	}
+}
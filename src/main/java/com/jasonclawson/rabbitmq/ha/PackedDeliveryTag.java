@@ -0,0 +1,23 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Tag of one message unpacked from a pack by {@link UnpackingHaConsumer}. Acking it settles the 
+ * message in its pack; the pack is acked on the broker once all of its messages are settled.
+ */
+@Getter
+@ToString(callSuper=true, exclude="carrier")
+@EqualsAndHashCode(callSuper=true, exclude="carrier")
+public class PackedDeliveryTag extends DeliveryTag {
+	private final int index;
+	private final PackedCarrier carrier;
+	
+	PackedDeliveryTag(PackedCarrier carrier, int index) {
+		super(carrier.getDeliveryTag().getInternalChannelId(), carrier.getDeliveryTag().getDeliveryTag());
+		this.carrier = carrier;
+		this.index = index;
+	}
+}
@@ -0,0 +1,183 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Packs small messages published to the same exchange and routing key into one AMQP message, 
+ * to save the per message framing and broker overhead. A pack is published when it holds the 
+ * maximum number of messages or bytes, or when its oldest message has waited the maximum delay.
+ * Consume packed messages with {@link UnpackingHaConsumer}, which delivers them one by one.
+ * 
+ * A pack is persistent if any of its messages is. The properties of each message travel inside 
+ * the pack; the pack itself only carries the packing content type.
+ * 
+ * Format of the pack body: the number of messages, then per message its properties as written by
+ * {@link HaUtils#writeProperties} and its length prefixed body.
+ */
+@Slf4j
+public class PackingPublisher {
+	public static final String PACKED_CONTENT_TYPE = "application/x-ha-packed";
+	private static final int PERSISTENT = 2;
+	
+	private final HaChannel channel;
+	private final int maxMessages;
+	private final int maxBytes;
+	private final long maxDelayNanos;
+	private final Map<Destination, Pack> packs = new HashMap<Destination, Pack>();
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(HaUtils.daemonThreadFactory("ha-packing-publisher"));
+	
+	/**
+	 * @param maxMessages messages in a pack
+	 * @param maxBytes size of a pack body
+	 * @param maxDelay milliseconds a message waits for its pack to fill
+	 */
+	public PackingPublisher(HaChannel channel, int maxMessages, int maxBytes, long maxDelay) {
+		this.channel = channel;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+		long checkInterval = Math.max(1, maxDelay / 2);
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushExpired();
+				} catch (Exception e) {
+					log.warn("Unable to publish pack {}", e.toString());
+				}
+			}
+		}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Adds the message to the pack of its destination. If publishing a full pack fails the pack 
+	 * is kept, with this message, and published again by a later call or by the flush timer. 
+	 * Until then publishing to its destination retries the full pack first, and fails without 
+	 * taking the message if it still cannot be published, so a pack never grows past its limits.
+	 */
+	public synchronized void publish(String exchange, String routingKey, BasicProperties properties, byte[] body) throws IOException {
+		if(body == null) {
+			throw new IllegalArgumentException("Message body must not be null");
+		}
+		Destination destination = new Destination(exchange, routingKey);
+		Pack pack = packs.get(destination);
+		if(pack != null && isFull(pack)) {
+			send(destination, pack);
+			packs.remove(destination);
+			pack = null;
+		}
+		if(pack == null) {
+			pack = new Pack();
+			packs.put(destination, pack);
+		}
+		pack.add(properties, body);
+		if(isFull(pack)) {
+			send(destination, pack);
+			packs.remove(destination);
+		}
+	}
+	
+	private boolean isFull(Pack pack) {
+		return pack.count >= maxMessages || pack.bytes.size() >= maxBytes;
+	}
+	
+	/**
+	 * Publishes all packs, full or not. Packs that fail to publish are kept.
+	 * @throws IOException the first failure, after trying every pack
+	 */
+	public synchronized void flush() throws IOException {
+		flush(false);
+	}
+	
+	/**
+	 * Publishes the pending packs and stops the flush timer
+	 */
+	public void close() throws IOException {
+		flusher.shutdownNow();
+		flush();
+	}
+	
+	private synchronized void flushExpired() throws IOException {
+		flush(true);
+	}
+	
+	/**
+	 * Publishes the packs, or only those whose oldest message waited the maximum delay. A pack is 
+	 * only removed once it was published, so its messages are not lost when the channel cannot publish.
+	 */
+	private void flush(boolean expiredOnly) throws IOException {
+		long now = System.nanoTime();
+		IOException failure = null;
+		Iterator<Map.Entry<Destination, Pack>> it = packs.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Destination, Pack> entry = it.next();
+			if(expiredOnly && now - entry.getValue().started < maxDelayNanos) {
+				continue;
+			}
+			try {
+				send(entry.getKey(), entry.getValue());
+				it.remove();
+			} catch (IOException e) {
+				if(failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+	
+	private void send(Destination destination, Pack pack) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(pack.bytes.size() + 4);
+		DataOutputStream out = new DataOutputStream(body);
+		out.writeInt(pack.count);
+		pack.bytes.writeTo(out);
+		out.flush();
+		
+		AMQP.BasicProperties.Builder properties = new AMQP.BasicProperties.Builder().contentType(PACKED_CONTENT_TYPE);
+		if(pack.persistent) {
+			properties.deliveryMode(PERSISTENT);
+		}
+		channel.basicPublish(destination.exchange, destination.routingKey, properties.build(), body.toByteArray());
+	}
+	
+	@Data
+	private static class Destination {
+		private final String exchange;
+		private final String routingKey;
+	}
+	
+	private static class Pack {
+		private final long started = System.nanoTime();
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private int count = 0;
+		private boolean persistent = false;
+		
+		void add(BasicProperties properties, byte[] body) throws IOException {
+			HaUtils.writeProperties(out, properties);
+			out.writeInt(body.length);
+			out.write(body);
+			out.flush();
+			count++;
+			if(properties != null && properties.getDeliveryMode() != null && properties.getDeliveryMode() == PERSISTENT) {
+				persistent = true;
+			}
+		}
+	}
+}
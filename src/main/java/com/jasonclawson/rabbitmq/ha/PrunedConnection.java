@@ -7,4 +7,12 @@ import com.rabbitmq.client.Channel;
 public interface PrunedConnection {
     public Channel createChannel() throws IOException;
     public Channel createChannel(int channelNumber) throws IOException;
+    public void close() throws IOException;
+    public void close(int closeCode, String closeMessage) throws IOException;
+    public void close(int timeout) throws IOException;
+    public void close(int closeCode, String closeMessage, int timeout) throws IOException;
+    public void abort();
+    public void abort(int closeCode, String closeMessage);
+    public void abort(int timeout);
+    public void abort(int closeCode, String closeMessage, int timeout);
 }
@@ -0,0 +1,344 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Journal of messages published while the connection is down. Messages are appended to memory 
+ * mapped segment files and published to the broker in order once the connection is recovered, 
+ * using publisher confirms. Fully confirmed segments are deleted. Segments left behind by a 
+ * previous process are replayed as well, so messages survive a restart while the broker is down.
+ * 
+ * Delivery is at least once: a crash between publishing a batch and recording its confirm 
+ * publishes the batch again. A spool holds a lock on its directory, so no two spools, in this 
+ * or another process, share one.
+ * 
+ * Records survive a crash of the process once appended. They survive a power failure only when 
+ * the spool is synced, which forces every append to disk and is much slower.
+ * 
+ * Segment layout: an 8 byte header holding the offset up to which records are confirmed, followed 
+ * by records of a 4 byte length and the serialized {@link OutboundMessage}. A zero length marks the
+ * end of the written records, which is what a freshly mapped file contains.
+ */
+@Slf4j
+public class PublishSpool {
+	private static final String SEGMENT_PREFIX = "spool-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String LOCK_FILE = "spool.lock";
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 4;
+	private static final int CONFIRM_BATCH_SIZE = 500;
+	private static final long CONFIRM_TIMEOUT = 30000;
+	
+	private final File directory;
+	private final int segmentSize;
+	private final boolean sync;
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+	
+	/**
+	 * Number of records not confirmed yet, read without locking on every publish
+	 */
+	private final AtomicLong unconfirmed = new AtomicLong();
+	
+	/**
+	 * oldest first, we append to the last one
+	 */
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private long nextSegmentNumber = 0;
+	private final ExecutorService drainer = Executors.newSingleThreadExecutor(HaUtils.daemonThreadFactory("ha-publish-spool"));
+	
+	/**
+	 * @param sync force every append to disk
+	 * @throws SpoolLockedException if another spool holds the directory
+	 */
+	public PublishSpool(File directory, int segmentSize, boolean sync) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create spool directory "+directory);
+		}
+		
+		lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+		FileLock acquired = null;
+		try {
+			acquired = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			//held by another spool of this process
+		} finally {
+			if(acquired == null) {
+				lockFile.close();
+			}
+		}
+		if(acquired == null) {
+			throw new SpoolLockedException(directory);
+		}
+		lock = acquired;
+		
+		try {
+			load();
+		} catch (IOException e) {
+			unlock();
+			throw e;
+		}
+	}
+	
+	public boolean isEmpty() {
+		return unconfirmed.get() == 0;
+	}
+	
+	public long getUnconfirmedCount() {
+		return unconfirmed.get();
+	}
+	
+	public synchronized void append(OutboundMessage message) throws IOException {
+		byte[] record = message.toBytes();
+		if(HEADER_SIZE + RECORD_HEADER_SIZE + record.length > segmentSize) {
+			throw new IOException("Message of "+record.length+" bytes does not fit in a spool segment of "+segmentSize+" bytes");
+		}
+		
+		Segment active = segments.isEmpty() ? null : segments.getLast();
+		if(active == null || !active.hasRoomFor(record)) {
+			active = new Segment(segmentFile(nextSegmentNumber++), segmentSize);
+			segments.add(active);
+		}
+		active.append(record, sync);
+		unconfirmed.incrementAndGet();
+	}
+	
+	/**
+	 * Publishes the spooled messages on a background thread
+	 * @param listener told when draining stopped
+	 */
+	void drainAsync(final Connection connection, final DrainListener listener) {
+		drainer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					drain(connection);
+					listener.drained(null);
+				} catch (Exception e) {
+					log.warn("Unable to drain publish spool", e);
+					listener.drained(e);
+				}
+			}
+		});
+	}
+	
+	void close() {
+		drainer.shutdownNow();
+		unlock();
+	}
+	
+	private void unlock() {
+		try {
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			log.warn("Unable to release lock of spool directory {}", directory, e);
+		}
+	}
+	
+	/**
+	 * Publishes every spooled message on a dedicated channel in confirm mode, one batch at a time
+	 */
+	void drain(Connection connection) throws IOException, InterruptedException {
+		Channel channel = connection.createChannel();
+		try {
+			channel.confirmSelect();
+			while(true) {
+				Segment segment;
+				List<byte[]> batch;
+				synchronized(this) {
+					segment = segments.peek();
+					if(segment == null) {
+						return;
+					}
+					batch = segment.read(CONFIRM_BATCH_SIZE);
+					if(batch.isEmpty()) {
+						if(segment == segments.getLast()) {
+							return;
+						}
+						segments.removeFirst();
+						segment.delete();
+						continue;
+					}
+				}
+				
+				for(byte[] record : batch) {
+					OutboundMessage message = OutboundMessage.fromBytes(record);
+					channel.basicPublish(message.getExchange(), message.getRoutingKey(), message.isMandatory(), message.getProperties(), message.getBody());
+				}
+				channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT);
+				
+				synchronized(this) {
+					segment.confirmRead(sync);
+				}
+				unconfirmed.addAndGet(-batch.size());
+				log.debug("Drained {} spooled messages", batch.size());
+			}
+		} catch (TimeoutException e) {
+			throw new IOException("Timed out waiting for the broker to confirm spooled messages", e);
+		} finally {
+			try {
+				if(channel.isOpen()) {
+					channel.close();
+				}
+			} catch (Exception e) {
+				log.debug("Unable to close spool channel {}", e.toString());
+			}
+		}
+	}
+	
+	private File segmentFile(long number) {
+		return new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+	
+	private void load() throws IOException {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		
+		for(String name : names) {
+			Segment segment = new Segment(new File(directory, name), segmentSize);
+			long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+			if(segment.hasUnconfirmed()) {
+				segments.add(segment);
+				unconfirmed.addAndGet(segment.countUnconfirmed());
+			} else {
+				segment.delete();
+			}
+		}
+		
+		if(!segments.isEmpty()) {
+			log.info("Found {} spool segments with unpublished messages in {}", segments.size(), directory);
+		}
+	}
+	
+	interface DrainListener {
+		/**
+		 * @param error why draining stopped early, null if the spool was drained
+		 */
+		void drained(Exception error);
+	}
+	
+	private static class Segment {
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int writeOffset;
+		private int confirmedOffset;
+		
+		/**
+		 * end of the records handed out by {@link #read(int)}, confirmed by {@link #confirmRead()}
+		 */
+		private int readOffset;
+		
+		Segment(File file, int size) throws IOException {
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+			} finally {
+				//the mapping stays valid after the file is closed
+				raf.close();
+			}
+			
+			confirmedOffset = Math.max(HEADER_SIZE, (int) buffer.getLong(0));
+			readOffset = confirmedOffset;
+			writeOffset = confirmedOffset;
+			int length;
+			while(writeOffset + RECORD_HEADER_SIZE <= buffer.capacity() && (length = buffer.getInt(writeOffset)) > 0) {
+				writeOffset += RECORD_HEADER_SIZE + length;
+			}
+		}
+		
+		boolean hasUnconfirmed() {
+			return confirmedOffset < writeOffset;
+		}
+		
+		boolean hasRoomFor(byte[] record) {
+			return writeOffset + RECORD_HEADER_SIZE + record.length <= buffer.capacity();
+		}
+		
+		int countUnconfirmed() {
+			int count = 0;
+			for(int offset = confirmedOffset; offset < writeOffset; offset += RECORD_HEADER_SIZE + buffer.getInt(offset)) {
+				count++;
+			}
+			return count;
+		}
+		
+		/**
+		 * Writes the record before its length, so a torn write is never read back
+		 */
+		void append(byte[] record, boolean sync) {
+			ByteBuffer view = buffer.duplicate();
+			view.position(writeOffset + RECORD_HEADER_SIZE);
+			view.put(record);
+			if(sync) {
+				buffer.force();
+			}
+			buffer.putInt(writeOffset, record.length);
+			if(sync) {
+				buffer.force();
+			}
+			writeOffset += RECORD_HEADER_SIZE + record.length;
+		}
+		
+		List<byte[]> read(int maxRecords) {
+			List<byte[]> records = new ArrayList<byte[]>();
+			int offset = confirmedOffset;
+			while(records.size() < maxRecords && offset < writeOffset) {
+				int length = buffer.getInt(offset);
+				byte[] record = new byte[length];
+				ByteBuffer view = buffer.duplicate();
+				view.position(offset + RECORD_HEADER_SIZE);
+				view.get(record);
+				records.add(record);
+				offset += RECORD_HEADER_SIZE + length;
+			}
+			readOffset = offset;
+			return records;
+		}
+		
+		void confirmRead(boolean sync) {
+			confirmedOffset = readOffset;
+			buffer.putLong(0, confirmedOffset);
+			if(sync) {
+				buffer.force();
+			}
+		}
+		
+		void delete() {
+			if(!file.delete()) {
+				log.warn("Unable to delete spool segment {}", file);
+			}
+		}
+	}
+}
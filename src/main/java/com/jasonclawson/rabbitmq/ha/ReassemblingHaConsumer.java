@@ -0,0 +1,236 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Reassembles the chunks published by {@link ChunkedPublisher} in a temporary file and hands the 
+ * body to a {@link ChunkedMessageHandler} as a stream once the last chunk arrived. Messages that 
+ * were not chunked are handed over as they are.
+ * 
+ * Consume with manual acks. Chunks are acked only after the handler processed the whole message, and rejected without 
+ * requeue if it failed. Until then they are unacked, so the prefetch of the channel must be 
+ * larger than the number of chunks of a message or the consumer stalls. When the channel is 
+ * replaced during recovery, partially reassembled messages are dropped, the broker redelivers 
+ * their chunks from the start.
+ * 
+ * A message whose next chunk does not arrive within the idle timeout, because its publisher 
+ * failed halfway for example, is dropped and its chunks are rejected, so it does not hold prefetch 
+ * slots and a temporary file forever. Call {@link #close()} when done with the consumer.
+ */
+@Slf4j
+public class ReassemblingHaConsumer extends DefaultHaConsumer implements ResettableConsumer {
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+	
+	private final ChunkedMessageHandler handler;
+	private final File tempDirectory;
+	private final long idleTimeoutNanos;
+	private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(HaUtils.daemonThreadFactory("ha-chunk-reassembly"));
+	
+	/**
+	 * guarded by this consumer, used by the consumer thread, reset and the idle timer
+	 */
+	private final Map<String, PartialMessage> partials = new HashMap<String, PartialMessage>();
+	private long internalChannelId = -1;
+	
+	/**
+	 * @param tempDirectory where chunks are reassembled, null for the default temporary directory
+	 */
+	public ReassemblingHaConsumer(HaChannel channel, ChunkedMessageHandler handler, File tempDirectory) {
+		this(channel, handler, tempDirectory, DEFAULT_IDLE_TIMEOUT);
+	}
+	
+	/**
+	 * @param idleTimeout milliseconds to wait for the next chunk of a message before dropping it
+	 */
+	public ReassemblingHaConsumer(HaChannel channel, ChunkedMessageHandler handler, File tempDirectory, long idleTimeout) {
+		super(channel);
+		if(idleTimeout <= 0) {
+			throw new IllegalArgumentException("Idle timeout must be positive, was "+idleTimeout);
+		}
+		this.handler = handler;
+		this.tempDirectory = tempDirectory;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		long checkInterval = Math.max(1, idleTimeout / 2);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				dropIdlePartials();
+			}
+		}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops the idle timer and drops partially reassembled messages, the broker redelivers them 
+	 * once the channel or consumer goes away
+	 */
+	public synchronized void close() {
+		sweeper.shutdownNow();
+		discardPartials();
+	}
+	
+	@Override
+	public synchronized void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) throws IOException {
+		Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+		Object streamIdHeader = headers == null ? null : headers.get(ChunkedPublisher.STREAM_ID_HEADER);
+		if(streamIdHeader == null) {
+			handle(envelope, properties, new ByteArrayInputStream(body), body.length, Collections.singletonList(envelope.getDeliveryTag()));
+			return;
+		}
+		
+		if(envelope.getDeliveryTag().getInternalChannelId() != internalChannelId) {
+			//the chunks of the old channel are redelivered on this one
+			discardPartials();
+			internalChannelId = envelope.getDeliveryTag().getInternalChannelId();
+		}
+		
+		String streamId = streamIdHeader.toString();
+		int sequence = ((Number) headers.get(ChunkedPublisher.CHUNK_SEQUENCE_HEADER)).intValue();
+		boolean last = Boolean.TRUE.equals(headers.get(ChunkedPublisher.LAST_CHUNK_HEADER));
+		
+		PartialMessage partial = partials.get(streamId);
+		if(partial == null) {
+			if(sequence != 0) {
+				log.warn("Dropping chunk {} of stream {} without its start", sequence, streamId);
+				getChannel().basicReject(envelope.getDeliveryTag(), false);
+				return;
+			}
+			partial = new PartialMessage(properties, File.createTempFile("ha-chunked-", ".part", tempDirectory));
+			partials.put(streamId, partial);
+		} else if(sequence != partial.nextSequence) {
+			log.warn("Dropping stream {}, got chunk {} while expecting {}", streamId, sequence, partial.nextSequence);
+			partials.remove(streamId);
+			partial.tags.add(envelope.getDeliveryTag());
+			partial.reject();
+			return;
+		}
+		
+		partial.append(envelope.getDeliveryTag(), body);
+		if(last) {
+			partials.remove(streamId);
+			partial.complete(envelope);
+		}
+	}
+	
+	@Override
+	public synchronized void reset() {
+		discardPartials();
+	}
+	
+	private synchronized void dropIdlePartials() {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<String, PartialMessage>> it = partials.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, PartialMessage> entry = it.next();
+			PartialMessage partial = entry.getValue();
+			if(now - partial.lastChunkAt < idleTimeoutNanos) {
+				continue;
+			}
+			log.warn("Dropping stream {}, no chunk for {} ms", entry.getKey(), TimeUnit.NANOSECONDS.toMillis(now - partial.lastChunkAt));
+			it.remove();
+			try {
+				partial.reject();
+			} catch (Exception e) {
+				//chunks of an old channel, they are redelivered anyway
+				log.debug("Unable to reject chunks of stream {}: {}", entry.getKey(), e.toString());
+			}
+		}
+	}
+	
+	private void discardPartials() {
+		for(PartialMessage partial : partials.values()) {
+			partial.discard();
+		}
+		partials.clear();
+	}
+	
+	private void handle(HaEnvelope envelope, BasicProperties properties, InputStream body, long length, List<DeliveryTag> tags) throws IOException {
+		try {
+			handler.handleMessage(envelope, properties, body, length);
+		} catch (Exception e) {
+			log.error("Chunked message handler failed, rejecting message", e);
+			for(DeliveryTag tag : tags) {
+				getChannel().basicReject(tag, false);
+			}
+			return;
+		}
+		for(DeliveryTag tag : tags) {
+			getChannel().basicAck(tag, false);
+		}
+	}
+	
+	private class PartialMessage {
+		private final BasicProperties properties;
+		private final File file;
+		private final OutputStream out;
+		private final List<DeliveryTag> tags = new ArrayList<DeliveryTag>();
+		private int nextSequence = 0;
+		private long length = 0;
+		private long lastChunkAt = System.nanoTime();
+		
+		PartialMessage(BasicProperties properties, File file) throws IOException {
+			this.properties = properties;
+			this.file = file;
+			this.out = new FileOutputStream(file);
+		}
+		
+		void append(DeliveryTag tag, byte[] chunk) throws IOException {
+			out.write(chunk);
+			tags.add(tag);
+			length += chunk.length;
+			nextSequence++;
+			lastChunkAt = System.nanoTime();
+		}
+		
+		void complete(HaEnvelope lastEnvelope) throws IOException {
+			out.close();
+			InputStream in = new FileInputStream(file);
+			try {
+				handle(lastEnvelope, properties, in, length, tags);
+			} finally {
+				in.close();
+				delete();
+			}
+		}
+		
+		void reject() throws IOException {
+			discard();
+			for(DeliveryTag tag : tags) {
+				getChannel().basicReject(tag, false);
+			}
+		}
+		
+		void discard() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.debug("Unable to close {}", file);
+			}
+			delete();
+		}
+		
+		private void delete() {
+			if(!file.delete()) {
+				log.warn("Unable to delete reassembly file {}", file);
+			}
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package com.jasonclawson.rabbitmq.ha;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 import lombok.RequiredArgsConstructor;
@@ -14,7 +17,51 @@ public class ReconnectionFactory {
 	private final ExecutorService executor;
 	private final Address[] addresses;
 	
+	private volatile InetAddress avoidedHost;
+	private volatile int avoidedPort;
+	
 	public Connection newConnection() throws IOException {
-		return factory.newDelegateConnection(executor, addresses);
+		return factory.newDelegateConnection(executor, orderedAddresses(avoidedHost, avoidedPort));
+	}
+	
+	/**
+	 * Creates a connection, trying the given broker node last
+	 */
+	public Connection newConnection(InetAddress avoidHost, int avoidPort) throws IOException {
+		return factory.newDelegateConnection(executor, orderedAddresses(avoidHost, avoidPort));
+	}
+	
+	/**
+	 * Moves the given broker node to the end of the address list. Connections are only made 
+	 * to it when none of the other nodes are reachable.
+	 */
+	public void avoid(InetAddress host, int port) {
+		this.avoidedPort = port;
+		this.avoidedHost = host;
+	}
+	
+	private Address[] orderedAddresses(InetAddress host, int port) {
+		if(addresses == null || host == null) {
+			return addresses;
+		}
+		
+		List<Address> preferred = new ArrayList<Address>(addresses.length);
+		List<Address> avoided = new ArrayList<Address>(1);
+		for(Address address : addresses) {
+			if(isSameNode(address, host, port)) {
+				avoided.add(address);
+			} else {
+				preferred.add(address);
+			}
+		}
+		preferred.addAll(avoided);
+		return preferred.toArray(new Address[preferred.size()]);
+	}
+	
+	private static boolean isSameNode(Address address, InetAddress host, int port) {
+		if(address.getPort() != -1 && address.getPort() != port) {
+			return false;
+		}
+		return address.getHost().equals(host.getHostAddress()) || address.getHost().equalsIgnoreCase(host.getHostName());
 	}
 }
@@ -0,0 +1,11 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+
+public class RecoveryTimeoutException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public RecoveryTimeoutException(String operation) {
+		super("The connection was not recovered before the deadline. Cannot execute "+operation);
+	}
+}
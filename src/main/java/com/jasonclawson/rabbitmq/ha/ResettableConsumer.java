@@ -0,0 +1,12 @@
+package com.jasonclawson.rabbitmq.ha;
+
+/**
+ * A consumer holding state that belongs to one channel, like locally buffered deliveries. 
+ * {@link #reset()} is called when the channel is replaced during recovery, right before the 
+ * consumer is subscribed on the new channel and the broker redelivers unacked messages.
+ * 
+ * Consumers wrapping another consumer should pass the reset on to it.
+ */
+public interface ResettableConsumer {
+	void reset();
+}
@@ -0,0 +1,195 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A logical queue spread over a number of physical queues named "name.shard.N", so throughput 
+ * is not bound by a single queue process on the broker. Messages are routed to a shard by jump 
+ * consistent hash of a key, so messages with the same key stay in order, and changing the 
+ * number of shards moves as few keys as possible.
+ * 
+ * The shard queues are declared with the given arguments, for example a queue master locator 
+ * to place them on different nodes of a cluster. The shards are declared before the first 
+ * publish or consume, and every channel used by this class declares them again when it is 
+ * recovered, before its consumers are re-subscribed.
+ */
+@Slf4j
+public class ShardedQueue {
+	private final HaConnection connection;
+	@Getter
+	private final String name;
+	@Getter
+	private final int shardCount;
+	private final boolean durable;
+	private final Map<String, Object> queueArguments;
+	
+	private volatile HaChannel publishChannel;
+	private final List<HaChannel> consumerChannels = new ArrayList<HaChannel>();
+	
+	private final HaChannelRecoveryListener publishTopologyRecovery = new HaChannelRecoveryListener() {
+		@Override
+		public void channelRecovered(HaChannel channel) throws IOException {
+			for(int shard = 0; shard < shardCount; shard++) {
+				declareShard(channel, shard);
+			}
+		}
+	};
+	
+	public ShardedQueue(HaConnection connection, String name, int shardCount, boolean durable, Map<String, Object> queueArguments) {
+		if(shardCount < 1) {
+			throw new IllegalArgumentException("A sharded queue needs at least one shard");
+		}
+		this.connection = connection;
+		this.name = name;
+		this.shardCount = shardCount;
+		this.durable = durable;
+		this.queueArguments = queueArguments == null ? null : Collections.unmodifiableMap(queueArguments);
+	}
+	
+	public String getShardQueue(int shard) {
+		return name+".shard."+shard;
+	}
+	
+	public int shardFor(String key) {
+		return jumpConsistentHash(hash(key), shardCount);
+	}
+	
+	/**
+	 * Declares all shard queues. Done on first publish anyway, call it to declare them up front.
+	 */
+	public synchronized void declare() throws IOException {
+		if(publishChannel == null) {
+			getPublishChannel();
+		} else {
+			publishTopologyRecovery.channelRecovered(publishChannel);
+		}
+	}
+	
+	/**
+	 * Publishes to the shard of the key through the default exchange
+	 */
+	public void publish(String key, BasicProperties properties, byte[] body) throws IOException {
+		HaChannel channel = getPublishChannel();
+		channel.basicPublish("", getShardQueue(shardFor(key)), properties, body);
+	}
+	
+	/**
+	 * Subscribes consumers to every shard, each on a channel of its own. Deliveries of one 
+	 * shard keep their order when consumersPerShard is 1.
+	 */
+	public synchronized void consume(boolean autoAck, int prefetch, int consumersPerShard, HaConsumerFactory consumerFactory) throws IOException {
+		for(int shard = 0; shard < shardCount; shard++) {
+			for(int i = 0; i < consumersPerShard; i++) {
+				consumerChannels.add(startConsumer(shard, autoAck, prefetch, consumerFactory));
+			}
+		}
+	}
+	
+	/**
+	 * Closes the channels of this sharded queue. The shard queues are left on the broker.
+	 */
+	public synchronized void close() {
+		for(HaChannel channel : consumerChannels) {
+			closeChannel(channel);
+		}
+		consumerChannels.clear();
+		if(publishChannel != null) {
+			publishChannel.removeRecoveryListener(publishTopologyRecovery);
+			closeChannel(publishChannel);
+			publishChannel = null;
+		}
+	}
+	
+	/**
+	 * Opens the publish channel and declares the shards on first use. Locks only then, publishes 
+	 * from many threads must not contend here.
+	 */
+	private HaChannel getPublishChannel() throws IOException {
+		HaChannel channel = publishChannel;
+		if(channel != null) {
+			return channel;
+		}
+		synchronized(this) {
+			if(publishChannel == null) {
+				HaChannel created = connection.createChannel();
+				try {
+					created.addRecoveryListener(publishTopologyRecovery);
+					publishTopologyRecovery.channelRecovered(created);
+				} catch (IOException e) {
+					closeChannel(created);
+					throw e;
+				}
+				publishChannel = created;
+			}
+			return publishChannel;
+		}
+	}
+	
+	private HaChannel startConsumer(final int shard, boolean autoAck, int prefetch, HaConsumerFactory consumerFactory) throws IOException {
+		HaChannel channel = connection.createChannel();
+		try {
+			channel.addRecoveryListener(new HaChannelRecoveryListener() {
+				@Override
+				public void channelRecovered(HaChannel recoveredChannel) throws IOException {
+					declareShard(recoveredChannel, shard);
+				}
+			});
+			declareShard(channel, shard);
+			if(prefetch > 0) {
+				channel.basicQos(prefetch);
+			}
+			channel.basicConsume(getShardQueue(shard), autoAck, consumerFactory.createConsumer(channel));
+			return channel;
+		} catch (IOException e) {
+			closeChannel(channel);
+			throw e;
+		}
+	}
+	
+	private void declareShard(HaChannel channel, int shard) throws IOException {
+		channel.queueDeclare(getShardQueue(shard), durable, false, false, queueArguments);
+	}
+	
+	private void closeChannel(HaChannel channel) {
+		try {
+			channel.close();
+		} catch (Exception e) {
+			log.debug("Error closing channel of sharded queue {}: {}", name, e.toString());
+		}
+	}
+	
+	/**
+	 * 64 bit FNV-1a of the key, jump consistent hash needs well spread keys
+	 */
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Jump consistent hash of Lamping and Veach
+	 */
+	static int jumpConsistentHash(long key, int buckets) {
+		long b = -1;
+		long j = 0;
+		while(j < buckets) {
+			b = j;
+			key = key * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) b;
+	}
+}
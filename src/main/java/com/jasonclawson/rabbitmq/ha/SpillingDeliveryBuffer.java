@@ -0,0 +1,318 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Delivery buffer that keeps a bounded number of deliveries on the heap and spills the rest to 
+ * memory mapped files, so a large prefetch does not fill the old generation when the application
+ * falls behind. Deliveries come out in the order they were put in: once the buffer spills, new 
+ * deliveries go to disk until the spilled ones have been taken.
+ * 
+ * Messages unpacked from a pack by {@link UnpackingHaConsumer} stay on the heap, their tags 
+ * cannot be written to disk; only their place in the order is spilled.
+ * 
+ * Spill files only live as long as the buffer. Unacknowledged deliveries are redelivered by the 
+ * broker, so files left by a previous process are deleted. Give every buffer its own directory.
+ */
+@Slf4j
+public class SpillingDeliveryBuffer implements DeliveryBuffer {
+	private static final String SEGMENT_PREFIX = "spill-";
+	private static final String SEGMENT_SUFFIX = ".buf";
+	private static final int RECORD_HEADER_SIZE = 4;
+	/**
+	 * first byte of a record holding a delivery, and of a record standing in for one kept on the heap
+	 */
+	private static final byte SPILLED_RECORD = 0;
+	private static final byte HELD_RECORD = 1;
+	
+	private final File directory;
+	private final int maxInMemory;
+	private final int segmentSize;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final ArrayDeque<HaDelivery> memory = new ArrayDeque<HaDelivery>();
+	/**
+	 * spilled deliveries that could not be written to disk, in order
+	 */
+	private final ArrayDeque<HaDelivery> held = new ArrayDeque<HaDelivery>();
+	
+	/**
+	 * oldest first, we write to the last one and read from the first one
+	 */
+	private final LinkedList<SpillSegment> segments = new LinkedList<SpillSegment>();
+	private int spilled = 0;
+	private long nextSegmentNumber = 0;
+	
+	/**
+	 * @param directory where spill files are created
+	 * @param maxInMemory number of deliveries kept on the heap before spilling
+	 * @param segmentSize size in bytes of each spill file
+	 */
+	public SpillingDeliveryBuffer(File directory, int maxInMemory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.maxInMemory = maxInMemory;
+		this.segmentSize = segmentSize;
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create spill directory "+directory);
+		}
+		deleteLeftoverSegments();
+	}
+
+	@Override
+	public void put(HaDelivery delivery) throws IOException {
+		lock.lock();
+		try {
+			if(spilled == 0 && memory.size() < maxInMemory) {
+				memory.add(delivery);
+			} else {
+				spill(delivery);
+			}
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public HaDelivery take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while(isEmpty()) {
+				notEmpty.await();
+			}
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public HaDelivery poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while(isEmpty()) {
+				if(nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			memory.clear();
+			held.clear();
+			for(SpillSegment segment : segments) {
+				segment.delete();
+			}
+			segments.clear();
+			spilled = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return memory.size() + spilled;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the number of deliveries currently on disk
+	 */
+	public int getSpilledCount() {
+		lock.lock();
+		try {
+			return spilled;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private boolean isEmpty() {
+		return memory.isEmpty() && spilled == 0;
+	}
+	
+	private HaDelivery next() {
+		HaDelivery delivery = memory.poll();
+		if(delivery != null) {
+			return delivery;
+		}
+		
+		SpillSegment segment = segments.getFirst();
+		byte[] record = segment.read();
+		spilled--;
+		if(spilled == 0) {
+			//start over at the beginning of a fresh file the next time we spill
+			for(SpillSegment drained : segments) {
+				drained.delete();
+			}
+			segments.clear();
+		} else if(!segment.hasUnread()) {
+			segments.removeFirst();
+			segment.delete();
+		}
+		if(record[0] == HELD_RECORD) {
+			return held.poll();
+		}
+		try {
+			return fromBytes(record);
+		} catch (IOException e) {
+			//we wrote this record ourselves, it can only be unreadable if the file was tampered with
+			throw new IllegalStateException("Corrupt spilled delivery in "+segment.file, e);
+		}
+	}
+	
+	private void spill(HaDelivery delivery) throws IOException {
+		boolean hold = delivery.getEnvelope().getDeliveryTag() instanceof PackedDeliveryTag;
+		byte[] record = hold ? new byte[] { HELD_RECORD } : toBytes(delivery);
+		SpillSegment segment = segments.isEmpty() ? null : segments.getLast();
+		if(segment == null || !segment.hasRoomFor(record)) {
+			File file = new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, nextSegmentNumber++, SEGMENT_SUFFIX));
+			segment = new SpillSegment(file, Math.max(segmentSize, RECORD_HEADER_SIZE + record.length));
+			segments.add(segment);
+		}
+		segment.write(record);
+		if(hold) {
+			held.add(delivery);
+		}
+		spilled++;
+	}
+	
+	private void deleteLeftoverSegments() {
+		File[] leftovers = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		for(File file : leftovers) {
+			if(!file.delete()) {
+				log.warn("Unable to delete leftover spill file {}", file);
+			}
+		}
+	}
+	
+	private static byte[] toBytes(HaDelivery delivery) throws IOException {
+		HaEnvelope envelope = delivery.getEnvelope();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(SPILLED_RECORD);
+		out.writeLong(envelope.getDeliveryTag().getInternalChannelId());
+		out.writeLong(envelope.getDeliveryTag().getDeliveryTag());
+		out.writeBoolean(envelope.isRedeliver());
+		out.writeUTF(envelope.getExchange());
+		out.writeUTF(envelope.getRoutingKey());
+		HaUtils.writeProperties(out, delivery.getProperties());
+		byte[] body = delivery.getBody();
+		out.writeInt(body == null ? -1 : body.length);
+		if(body != null) {
+			out.write(body);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static HaDelivery fromBytes(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		in.readByte();
+		long internalChannelId = in.readLong();
+		long deliveryTag = in.readLong();
+		boolean redeliver = in.readBoolean();
+		String exchange = in.readUTF();
+		String routingKey = in.readUTF();
+		HaEnvelope envelope = new HaEnvelope(internalChannelId, new Envelope(deliveryTag, redeliver, exchange, routingKey));
+		
+		AMQP.BasicProperties properties = HaUtils.readProperties(in);
+		int bodyLength = in.readInt();
+		byte[] body = null;
+		if(bodyLength >= 0) {
+			body = new byte[bodyLength];
+			in.readFully(body);
+		}
+		return new HaDelivery(envelope, properties, body);
+	}
+	
+	private static class SpillSegment {
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int writeOffset = 0;
+		private int readOffset = 0;
+		
+		SpillSegment(File file, int size) throws IOException {
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				//the mapping stays valid after the file is closed
+				raf.close();
+			}
+		}
+		
+		boolean hasRoomFor(byte[] record) {
+			return writeOffset + RECORD_HEADER_SIZE + record.length <= buffer.capacity();
+		}
+		
+		void write(byte[] record) {
+			buffer.putInt(writeOffset, record.length);
+			ByteBuffer view = buffer.duplicate();
+			view.position(writeOffset + RECORD_HEADER_SIZE);
+			view.put(record);
+			writeOffset += RECORD_HEADER_SIZE + record.length;
+		}
+		
+		byte[] read() {
+			int length = buffer.getInt(readOffset);
+			byte[] record = new byte[length];
+			ByteBuffer view = buffer.duplicate();
+			view.position(readOffset + RECORD_HEADER_SIZE);
+			view.get(record);
+			readOffset += RECORD_HEADER_SIZE + length;
+			return record;
+		}
+		
+		boolean hasUnread() {
+			return readOffset < writeOffset;
+		}
+		
+		void delete() {
+			if(!file.delete()) {
+				log.warn("Unable to delete spill file {}", file);
+			}
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.File;
+import java.io.IOException;
+
+public class SpoolLockedException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public SpoolLockedException(File directory) {
+		super("Spool directory "+directory+" is in use by another spool");
+	}
+}
@@ -0,0 +1,87 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.jasonclawson.rabbitmq.ha.ChannelSettlements.Outcome;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Delivers the messages of packs published by {@link PackingPublisher} one by one to the wrapped
+ * consumer, with a {@link PackedDeliveryTag} each. Acks, nacks and rejects of those tags are 
+ * tracked by the channel, which settles the pack once all of its messages are settled. Other 
+ * messages are passed on unchanged. Multiple acks, nacks and rejects cover packs and other 
+ * deliveries alike, in the order the broker delivered them.
+ * 
+ * Wrap it around any other consumer wrappers, so they see the individual messages. A malformed 
+ * pack is rejected without requeue before any of its messages is delivered.
+ */
+@Slf4j
+public class UnpackingHaConsumer extends ForwardingHaConsumer {
+	private static final BasicProperties NO_PROPERTIES = new AMQP.BasicProperties.Builder().build();
+	
+	public UnpackingHaConsumer(HaConsumer delegate) {
+		super(delegate);
+	}
+	
+	@Override
+	public void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) throws IOException {
+		if(properties == null || !PackingPublisher.PACKED_CONTENT_TYPE.equals(properties.getContentType())) {
+			super.handleDelivery(consumerTag, envelope, properties, body);
+			return;
+		}
+		
+		DeliveryTag deliveryTag = envelope.getDeliveryTag();
+		ChannelSettlements settlements = envelope.getSettlements();
+		BasicProperties[] memberProperties;
+		byte[][] memberBodies;
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+			int count = in.readInt();
+			//every message takes at least its properties flag and body length
+			if(count < 1 || count > in.available() / 5) {
+				throw new IOException("Invalid message count "+count);
+			}
+			memberProperties = new BasicProperties[count];
+			memberBodies = new byte[count][];
+			for(int i=0; i<count; i++) {
+				memberProperties[i] = HaUtils.readProperties(in);
+				int length = in.readInt();
+				if(length < 0 || length > in.available()) {
+					throw new IOException("Invalid body length "+length+" of message "+i);
+				}
+				memberBodies[i] = new byte[length];
+				in.readFully(memberBodies[i]);
+			}
+			if(in.available() > 0) {
+				throw new IOException(in.available()+" bytes after the last message");
+			}
+		} catch (IOException e) {
+			reject(settlements, deliveryTag, e);
+			return;
+		} catch (RuntimeException e) {
+			reject(settlements, deliveryTag, e);
+			return;
+		}
+		
+		//with autoAck there is nothing to settle
+		PackedCarrier carrier = settlements == null 
+				? new PackedCarrier(deliveryTag, memberBodies.length, null) 
+				: settlements.unpacked(deliveryTag, memberBodies.length);
+		for(int i=0; i<memberBodies.length; i++) {
+			HaEnvelope memberEnvelope = new HaEnvelope(new PackedDeliveryTag(carrier, i), envelope.getInternalEnvelope());
+			super.handleDelivery(consumerTag, memberEnvelope, memberProperties[i] == null ? NO_PROPERTIES : memberProperties[i], memberBodies[i]);
+		}
+	}
+	
+	private void reject(ChannelSettlements settlements, DeliveryTag deliveryTag, Exception e) throws IOException {
+		log.warn("Rejecting malformed pack {}: {}", deliveryTag, e.toString());
+		if(settlements != null) {
+			settlements.settle(deliveryTag.getDeliveryTag(), false, Outcome.REJECT);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.jasonclawson.rabbitmq.ha;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Gives up on deliveries that are not acked within a visibility timeout, so a hanging handler 
+ * does not hold its prefetch slot forever. Every delivery is registered with a timeout on a 
+ * {@link HashedTimingWheel}; an ack, nack or reject cancels it. When it expires the delivery is 
+ * abandoned with {@link HaChannel#abandonDelivery(DeliveryTag, boolean)} and requeued, or handed 
+ * to an {@link ExpiryHandler} when one is given. The late ack of the hanging handler is dropped.
+ * 
+ * Deliveries of an old channel are forgotten when the first delivery of the new channel arrives,
+ * or on reset, since the broker already requeued them.
+ * 
+ * Expired deliveries are abandoned, or handed to the expiry handler, on an executor rather than 
+ * the timer thread, since the channel call blocks while the connection is recovered.
+ */
+@Slf4j
+public class VisibilityTimeoutConsumer extends ForwardingHaConsumer implements HaAckListener {
+	/**
+	 * Decides what happens to a delivery that was not acked in time
+	 */
+	public interface ExpiryHandler {
+		void expired(HaChannel channel, DeliveryTag deliveryTag);
+	}
+	
+	private final HaChannel channel;
+	private final HashedTimingWheel wheel;
+	private final long visibilityTimeout;
+	private final ExpiryHandler expiryHandler;
+	/**
+	 * used when no executor is given, shared by all consumers
+	 */
+	private static final Executor DEFAULT_EXPIRY_EXECUTOR = Executors.newSingleThreadExecutor(HaUtils.daemonThreadFactory("ha-visibility-expiry"));
+	
+	private final Executor expiryExecutor;
+	private final ConcurrentHashMap<DeliveryTag, HashedTimingWheel.Timeout> inFlight = new ConcurrentHashMap<DeliveryTag, HashedTimingWheel.Timeout>();
+	private volatile long internalChannelId = -1;
+	
+	/**
+	 * @param wheel timer for the timeouts, may be shared by many consumers
+	 * @param visibilityTimeout milliseconds a delivery may stay unacked
+	 * @param expiryHandler null to requeue expired deliveries
+	 */
+	public VisibilityTimeoutConsumer(HaChannel channel, HaConsumer delegate, HashedTimingWheel wheel, long visibilityTimeout, ExpiryHandler expiryHandler) {
+		this(channel, delegate, wheel, visibilityTimeout, expiryHandler, DEFAULT_EXPIRY_EXECUTOR);
+	}
+	
+	/**
+	 * @param expiryExecutor runs the abandon or expiry handler of expired deliveries
+	 */
+	public VisibilityTimeoutConsumer(HaChannel channel, HaConsumer delegate, HashedTimingWheel wheel, long visibilityTimeout, ExpiryHandler expiryHandler, Executor expiryExecutor) {
+		super(delegate);
+		this.channel = channel;
+		this.wheel = wheel;
+		this.visibilityTimeout = visibilityTimeout;
+		this.expiryHandler = expiryHandler;
+		this.expiryExecutor = expiryExecutor;
+		channel.addAckListener(this);
+	}
+	
+	@Override
+	public void handleDelivery(String consumerTag, HaEnvelope envelope, BasicProperties properties, byte[] body) throws IOException {
+		final DeliveryTag deliveryTag = envelope.getDeliveryTag();
+		if(deliveryTag.getInternalChannelId() != internalChannelId) {
+			internalChannelId = deliveryTag.getInternalChannelId();
+			forgetOldChannels();
+		}
+		
+		HashedTimingWheel.Timeout timeout = wheel.schedule(new HashedTimingWheel.Task() {
+			@Override
+			public void expired(HashedTimingWheel.Timeout timeout) {
+				if(inFlight.remove(deliveryTag, timeout)) {
+					expire(deliveryTag);
+				}
+			}
+		}, visibilityTimeout, TimeUnit.MILLISECONDS);
+		inFlight.put(deliveryTag, timeout);
+		if(timeout.isExpired() && inFlight.remove(deliveryTag, timeout)) {
+			//expired before it was registered
+			expire(deliveryTag);
+		}
+		super.handleDelivery(consumerTag, envelope, properties, body);
+	}
+	
+	/**
+	 * @return the number of deliveries waiting for their ack
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+	
+	@Override
+	public void handleAck(DeliveryTag deliveryTag, boolean multiple) {
+		settle(deliveryTag, multiple);
+	}
+	
+	@Override
+	public void handleNack(DeliveryTag deliveryTag, boolean multiple, boolean requeue) {
+		settle(deliveryTag, multiple);
+	}
+	
+	@Override
+	public void reset() {
+		forgetAll();
+		super.reset();
+	}
+	
+	private void expire(final DeliveryTag deliveryTag) {
+		if(deliveryTag.getInternalChannelId() != internalChannelId) {
+			return;
+		}
+		log.warn("Delivery {} was not acked within {} ms", deliveryTag, visibilityTimeout);
+		expiryExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(expiryHandler != null) {
+					expiryHandler.expired(channel, deliveryTag);
+					return;
+				}
+				try {
+					channel.abandonDelivery(deliveryTag, true);
+				} catch (Exception e) {
+					log.warn("Unable to requeue expired delivery {}: {}", deliveryTag, e.toString());
+				}
+			}
+		});
+	}
+	
+	private void settle(DeliveryTag deliveryTag, boolean multiple) {
+		if(!multiple) {
+			cancel(inFlight.remove(deliveryTag));
+			return;
+		}
+		
+		//multiple settles are rare, a scan is fine
+		for(Iterator<Entry<DeliveryTag, HashedTimingWheel.Timeout>> it = inFlight.entrySet().iterator(); it.hasNext();) {
+			Entry<DeliveryTag, HashedTimingWheel.Timeout> entry = it.next();
+			DeliveryTag tag = entry.getKey();
+			if(tag.getInternalChannelId() == deliveryTag.getInternalChannelId() && tag.getDeliveryTag() <= deliveryTag.getDeliveryTag()) {
+				it.remove();
+				cancel(entry.getValue());
+			}
+		}
+	}
+	
+	private void forgetOldChannels() {
+		for(Iterator<Entry<DeliveryTag, HashedTimingWheel.Timeout>> it = inFlight.entrySet().iterator(); it.hasNext();) {
+			Entry<DeliveryTag, HashedTimingWheel.Timeout> entry = it.next();
+			if(entry.getKey().getInternalChannelId() != internalChannelId) {
+				it.remove();
+				cancel(entry.getValue());
+			}
+		}
+	}
+	
+	private void forgetAll() {
+		for(Iterator<HashedTimingWheel.Timeout> it = inFlight.values().iterator(); it.hasNext();) {
+			cancel(it.next());
+			it.remove();
+		}
+	}
+	
+	private static void cancel(HashedTimingWheel.Timeout timeout) {
+		if(timeout != null) {
+			timeout.cancel();
+		}
+	}
+}